@@ -136,6 +136,8 @@ abstract class AbsHistoryEditText extends EditText {
     private AdapterView.OnItemSelectedListener mItemSelectedListener;
 
     private final DropDownItemClickListener mDropDownItemClickListener = new DropDownItemClickListener();
+    // Zenlibs
+    private final DropDownItemLongClickListener mDropDownItemLongClickListener = new DropDownItemLongClickListener();
 
     private boolean mDropDownDismissedOnCompletion = true;
 
@@ -143,6 +145,16 @@ abstract class AbsHistoryEditText extends EditText {
 
     private int mLastKeyCode = KeyEvent.KEYCODE_UNKNOWN;
     private boolean mOpenBefore;
+    // Zenlibs
+    private int mFilterDelay;
+    private int mDelayedFilteringKeyCode = KeyEvent.KEYCODE_UNKNOWN;
+    private final Runnable mDelayedFiltering = new Runnable() {
+        @Override
+        public void run() {
+            // The text is read now, so the last change is always the one filtered
+            performFiltering(getText(), mDelayedFilteringKeyCode);
+        }
+    };
 
     private Validator mValidator = null;
 
@@ -204,6 +216,9 @@ abstract class AbsHistoryEditText extends EditText {
         mHintResource = a.getResourceId(R.styleable.HistoryEditText_android_completionHintView,
                 R.layout.het__simple_dropdown_hint);
 
+        // Zenlibs
+        mFilterDelay = a.getInt(R.styleable.HistoryEditText_historyFilterDelay, 0);
+
         // Always turn on the auto complete input type flag, since it
         // makes no sense to use this widget without it.
         int inputType = getInputType();
@@ -536,6 +551,21 @@ abstract class AbsHistoryEditText extends EditText {
         mThreshold = threshold;
     }
 
+    // Zenlibs
+    /**
+     * Sets how long, in milliseconds, the text must stay unchanged before it is filtered. The
+     * changes made within that time are filtered once, with the text as it is at the end. Zero,
+     * the default, filters on every change.
+     */
+    public void setFilterDelay(int filterDelay) {
+        mFilterDelay = Math.max(0, filterDelay);
+    }
+
+    // Zenlibs
+    public int getFilterDelay() {
+        return mFilterDelay;
+    }
+
     /**
      * <p>
      * Sets the listener that will be notified when the user clicks an item in
@@ -853,6 +883,9 @@ abstract class AbsHistoryEditText extends EditText {
     }
 
     void doAfterTextChanged() {
+        // Zenlibs: a filtering delayed for an earlier change must not run on this text
+        removeCallbacks(mDelayedFiltering);
+
         if (mBlockCompletion)
             return;
 
@@ -865,6 +898,13 @@ abstract class AbsHistoryEditText extends EditText {
             return;
         }
 
+        // Zenlibs
+        if (mFilterDelay > 0) {
+            mDelayedFilteringKeyCode = mLastKeyCode;
+            postDelayed(mDelayedFiltering, mFilterDelay);
+            return;
+        }
+
         performFiltering(getText(), mLastKeyCode);
     }
 
@@ -968,8 +1008,9 @@ abstract class AbsHistoryEditText extends EditText {
         } else {
             // <Zenlibs>
             if (mFilter != null) {
+                // Runs on the shared threads if the filter allows it
                 // </Zenlibs>
-                mFilter.filter(text, new Filter.FilterListener() {
+                PooledFilter.filter(mFilter, text, new Filter.FilterListener() {
                     @Override
                     public void onFilterComplete(int count) {
                         updateDropDownForFilter(count, false);
@@ -1007,6 +1048,9 @@ abstract class AbsHistoryEditText extends EditText {
     }
 
     private void performCompletion(View selectedView, int position, long id) {
+        // Zenlibs
+        // A filtering still waiting would show the drop down again
+        removeCallbacks(mDelayedFiltering);
         if (isPopupShowing()) {
             Object selectedItem;
             if (position < 0) {
@@ -1087,7 +1131,8 @@ abstract class AbsHistoryEditText extends EditText {
         Selection.setSelection(spannable, spannable.length());
     }
 
-    private void updateDropDownForFilter(int count, boolean force) {
+    // Zenlibs: package-private, so that HistoryEditText can join its filterings
+    void updateDropDownForFilter(int count, boolean force) {
         // Not attached to window, don't update drop-down
         if (getWindowVisibility() == View.GONE)
             return;
@@ -1133,6 +1178,8 @@ abstract class AbsHistoryEditText extends EditText {
         super.onFocusChanged(focused, direction, previouslyFocusedRect);
         // Perform validation if the view is losing focus.
         if (!focused) {
+            // Zenlibs
+            removeCallbacks(mDelayedFiltering);
             performValidation();
             dismissDropDown();
         } else {
@@ -1148,6 +1195,8 @@ abstract class AbsHistoryEditText extends EditText {
 
     @Override
     protected void onDetachedFromWindow() {
+        // Zenlibs
+        removeCallbacks(mDelayedFiltering);
         dismissDropDown();
         super.onDetachedFromWindow();
     }
@@ -1381,6 +1430,7 @@ abstract class AbsHistoryEditText extends EditText {
             mDropDownList.setAdapter(mCombinedAdapter);
             mDropDownList.setVerticalFadingEdgeEnabled(true);
             mDropDownList.setOnItemClickListener(mDropDownItemClickListener);
+            mDropDownList.setOnItemLongClickListener(mDropDownItemLongClickListener);
             mDropDownList.setFocusable(true);
             mDropDownList.setFocusableInTouchMode(true);
             mDropDownList.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
@@ -1487,6 +1537,15 @@ abstract class AbsHistoryEditText extends EditText {
     // Zenlibs
     protected abstract ListAdapter getCombinedAdapter(ListAdapter userAdapter);
 
+    // Zenlibs
+    /**
+     * Called when an item of the drop down list is long pressed. Returns whether the long press
+     * was consumed. The default implementation does nothing.
+     */
+    protected boolean onDropDownItemLongClick(AdapterView<?> parent, View v, int position, long id) {
+        return false;
+    }
+
     private View getHintView(Context context) {
         if (mHintText != null && mHintText.length() > 0) {
             final TextView hintView = (TextView) LayoutInflater.from(context).inflate(mHintResource, null)
@@ -1596,6 +1655,13 @@ abstract class AbsHistoryEditText extends EditText {
         }
     }
 
+    // Zenlibs
+    private class DropDownItemLongClickListener implements AdapterView.OnItemLongClickListener {
+        public boolean onItemLongClick(AdapterView<?> parent, View v, int position, long id) {
+            return onDropDownItemLongClick(parent, v, position, id);
+        }
+    }
+
     /**
      * <p>
      * Wrapper class for a ListView. This wrapper hijacks the focus to make sure
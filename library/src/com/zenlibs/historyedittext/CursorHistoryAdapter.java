@@ -0,0 +1,145 @@
+package com.zenlibs.historyedittext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+/**
+ * Adapter for the history part of the dropdown when it can hold many values. Rows are read from
+ * a cursor as they are displayed, so only the cursor window is kept in memory, however many
+ * values match. Both the unfiltered list and the filtered ones are queried by the {@link Source}
+ * on the filter thread. The cursor is owned by the adapter until {@link #close()} is called.
+ */
+class CursorHistoryAdapter extends BaseAdapter implements Filterable {
+    private final LayoutInflater mInflater;
+    private final int mResource;
+    private final Source mSource;
+    private Cursor mCursor;
+    // Cursor positions of the rows removed since the query, in ascending order
+    private final List<Integer> mRemoved = new ArrayList<Integer>();
+    private Filter mFilter;
+    private boolean mClosed;
+
+    CursorHistoryAdapter(Context context, int resource, Source source) {
+        mInflater = LayoutInflater.from(context);
+        mResource = resource;
+        mSource = source;
+    }
+
+    @Override
+    public int getCount() {
+        return mCursor != null ? mCursor.getCount() - mRemoved.size() : 0;
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mCursor.moveToPosition(toCursorPosition(position)) ? HistoryDb.getText(mCursor) : null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null ? convertView : mInflater.inflate(mResource, parent, false));
+        view.setText(getItem(position));
+        return view;
+    }
+
+    @Override
+    public Filter getFilter() {
+        if (mFilter == null) {
+            mFilter = new CursorFilter();
+        }
+        return mFilter;
+    }
+
+    /**
+     * Hides the row at the position without querying again.
+     */
+    void remove(int position) {
+        int cursorPosition = toCursorPosition(position);
+        int i = 0;
+        while (i < mRemoved.size() && mRemoved.get(i) < cursorPosition) {
+            i++;
+        }
+        mRemoved.add(i, cursorPosition);
+        notifyDataSetChanged();
+    }
+
+    private int toCursorPosition(int position) {
+        for (int removed : mRemoved) {
+            if (removed > position) {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Closes the current cursor, and the ones of the filterings still running when they
+     * complete. The adapter is empty from then on.
+     */
+    void close() {
+        mClosed = true;
+        swapCursor(null);
+    }
+
+    private void swapCursor(Cursor cursor) {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+        mCursor = cursor;
+        mRemoved.clear();
+        if (cursor != null && cursor.getCount() > 0) {
+            notifyDataSetChanged();
+        } else {
+            notifyDataSetInvalidated();
+        }
+    }
+
+    interface Source {
+        /**
+         * Called on a background thread, returns the values that match <code>constraint</code>,
+         * or all of them if it is null.
+         */
+        Cursor query(String constraint);
+    }
+
+    private class CursorFilter extends PooledFilter {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            Cursor cursor = mSource.query(constraint == null || constraint.length() == 0 ? null : constraint
+                    .toString());
+            FilterResults results = new FilterResults();
+            results.values = cursor;
+            // Counting fills the first window here rather than on the UI thread
+            results.count = cursor.getCount();
+            return results;
+        }
+
+        @Override
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            Cursor cursor = (Cursor) results.values;
+            if (mClosed) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            swapCursor(cursor);
+        }
+    }
+}
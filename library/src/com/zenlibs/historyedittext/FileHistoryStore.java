@@ -0,0 +1,308 @@
+package com.zenlibs.historyedittext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * {@link HistoryStore} that appends every change to a text log file and serves queries from
+ * memory. The log is replayed the first time the store is used. Writes cost a sequential append
+ * and no index maintenance, but the file is never compacted, so it suits fields with a moderate
+ * number of distinct values.
+ * <p>
+ * Each line of the log is a record: <code>I</code>, time, tag and text for an insertion,
+ * <code>D</code>, tag and text for a deletion, and <code>C</code> alone for a clear, separated
+ * by tabs. A null tag is stored as an empty one.
+ * </p>
+ */
+public class FileHistoryStore implements HistoryStore {
+    private static final String CHARSET = "UTF-8";
+    private static final char INSERT = 'I';
+    private static final char DELETE = 'D';
+    private static final char CLEAR = 'C';
+    private static final char SEPARATOR = '\t';
+
+    private final File mFile;
+    private final MemoryHistoryStore mMemory = new MemoryHistoryStore();
+    private Writer mWriter;
+    private boolean mLoaded;
+    // Length of the complete records when the log ends with a partial one, cut before the next
+    // append, or -1
+    private long mValidLength = -1;
+    // Whether the log could not be read to its end, so the next append starts a new line
+    private boolean mNeedsNewLine;
+
+    public FileHistoryStore(File file) {
+        mFile = file;
+    }
+
+    @Override
+    public synchronized void insert(List<HistoryEntry> entries) {
+        load();
+        StringBuilder records = new StringBuilder();
+        for (HistoryEntry entry : entries) {
+            String tag = nonNull(entry.getTag());
+            String text = entry.getText().trim();
+            mMemory.insert(new HistoryEntry(tag, text, entry.getTime()));
+            records.append(INSERT).append(SEPARATOR).append(entry.getTime()).append(SEPARATOR);
+            escape(tag, records);
+            records.append(SEPARATOR);
+            escape(text, records);
+            records.append('\n');
+        }
+        append(records.toString());
+    }
+
+    @Override
+    public synchronized List<String> query(String tag, int limit) {
+        load();
+        return mMemory.query(nonNull(tag), limit);
+    }
+
+    @Override
+    public synchronized List<String> queryPrefix(String tag, String prefix, int limit) {
+        load();
+        return mMemory.queryPrefix(nonNull(tag), prefix, limit);
+    }
+
+    @Override
+    public synchronized List<String> queryTokens(String tag, String query, int limit) {
+        load();
+        return mMemory.queryTokens(nonNull(tag), query, limit);
+    }
+
+    @Override
+    public synchronized void delete(String tag, String text) {
+        load();
+        tag = nonNull(tag);
+        text = text.trim();
+        mMemory.delete(tag, text);
+        StringBuilder record = new StringBuilder();
+        appendDelete(tag, text, record);
+        append(record.toString());
+    }
+
+    @Override
+    public synchronized int trim(String tag, int maxEntries, long minTime) {
+        load();
+        tag = nonNull(tag);
+        List<String> removed = mMemory.trimEntries(tag, maxEntries, minTime);
+        if (!removed.isEmpty()) {
+            StringBuilder records = new StringBuilder();
+            for (String text : removed) {
+                appendDelete(tag, text, records);
+            }
+            append(records.toString());
+        }
+        return removed.size();
+    }
+
+    @Override
+    public String getKey(String text) {
+        return text.trim();
+    }
+
+    @Override
+    public synchronized void clear() {
+        load();
+        mMemory.clear();
+        closeWriter();
+        // The log only needs to be replayed from here on, so it can start over
+        try {
+            new FileOutputStream(mFile, false).close();
+            mValidLength = -1;
+            mNeedsNewLine = false;
+        } catch (IOException e) {
+            append(CLEAR + "\n");
+        }
+    }
+
+    /**
+     * Closes the log file. It is reopened if the store is used again.
+     */
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(mFile));
+        } catch (FileNotFoundException e) {
+            // Nothing was written yet
+            return;
+        }
+        // Only lines ended by a new line are complete, the rest of an interrupted write is not
+        // replayed. '\n' never occurs within an UTF-8 sequence.
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long length = 0;
+        long validLength = 0;
+        try {
+            int b;
+            while ((b = in.read()) >= 0) {
+                length++;
+                if (b == '\n') {
+                    replay(line.toString(CHARSET));
+                    line.reset();
+                    validLength = length;
+                } else {
+                    line.write(b);
+                }
+            }
+            if (length > validLength) {
+                mValidLength = validLength;
+            }
+        } catch (IOException e) {
+            // Keep what could be read. The rest is kept too, but must not run into the next record.
+            mNeedsNewLine = true;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void replay(String line) {
+        String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+        if (fields[0].length() != 1) {
+            return;
+        }
+        switch (fields[0].charAt(0)) {
+        case INSERT:
+            if (fields.length == 4) {
+                long time;
+                try {
+                    time = Long.parseLong(fields[1]);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                mMemory.insert(new HistoryEntry(unescape(fields[2]), unescape(fields[3]), time));
+            }
+            break;
+        case DELETE:
+            if (fields.length == 3) {
+                mMemory.delete(unescape(fields[1]), unescape(fields[2]));
+            }
+            break;
+        case CLEAR:
+            mMemory.clear();
+            break;
+        }
+    }
+
+    private void append(String records) {
+        try {
+            if (mWriter == null) {
+                File parent = mFile.getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                if (mValidLength >= 0) {
+                    truncate(mFile, mValidLength);
+                    mValidLength = -1;
+                }
+                mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile, true), CHARSET));
+            }
+            if (mNeedsNewLine) {
+                // An empty line is skipped by replay()
+                mWriter.write('\n');
+                mNeedsNewLine = false;
+            }
+            mWriter.write(records);
+            mWriter.flush();
+        } catch (IOException e) {
+            // The values stay in memory, they are only lost for the next process. A record may
+            // have been partly written.
+            closeWriter();
+            mNeedsNewLine = true;
+        }
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+            }
+            mWriter = null;
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void appendDelete(String tag, String text, StringBuilder out) {
+        out.append(DELETE).append(SEPARATOR);
+        escape(tag, out);
+        out.append(SEPARATOR);
+        escape(text, out);
+        out.append('\n');
+    }
+
+    private static String nonNull(String tag) {
+        return tag != null ? tag : "";
+    }
+
+    private static void escape(String s, StringBuilder out) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == SEPARATOR) {
+                out.append("\\t");
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c == '\r') {
+                out.append("\\r");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                if (next == 't') {
+                    out.append(SEPARATOR);
+                } else if (next == 'n') {
+                    out.append('\n');
+                } else if (next == 'r') {
+                    out.append('\r');
+                } else {
+                    out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.zenlibs.historyedittext;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.Filter.FilterListener;
+
+/**
+ * Runs the filterings of every {@link PooledFilter} of the process on a few shared threads,
+ * instead of one thread per filter. Like a plain filter, each one runs a single request at a time
+ * and only its latest request is kept while it waits. Requests of the focused widget are taken
+ * first; the waiting requests of a widget are dropped when it loses focus.
+ */
+final class FilterExecutor {
+    private static final int MAX_THREADS = 2;
+    // Idle threads stop after this long, as the thread of a plain filter does
+    private static final long IDLE_TIMEOUT = 3000;
+
+    private static final Object sLock = new Object();
+    // Waiting requests, oldest first
+    private static final LinkedList<Request> sQueue = new LinkedList<Request>();
+    private static int sThreads;
+    // Waiting threads not woken yet, and wake-ups not taken by a thread yet
+    private static int sIdleThreads;
+    private static int sWakeups;
+    private static Object sFocusedOwner;
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private FilterExecutor() {
+    }
+
+    static void submit(PooledFilter filter, CharSequence constraint, FilterListener listener) {
+        synchronized (sLock) {
+            for (Iterator<Request> it = sQueue.iterator(); it.hasNext();) {
+                if (it.next().filter == filter) {
+                    it.remove();
+                }
+            }
+            sQueue.add(new Request(filter, constraint, listener));
+            if (sIdleThreads > 0) {
+                wakeIdleThread();
+            } else if (sThreads < MAX_THREADS) {
+                sThreads++;
+                Thread thread = new Thread(new Worker(), "HistoryEditText filter");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Gives priority to the requests of <code>owner</code> if it has the focus, or drops its
+     * waiting requests if it lost it. Their listeners are not called.
+     */
+    static void setFocused(Object owner, boolean focused) {
+        synchronized (sLock) {
+            if (focused) {
+                sFocusedOwner = owner;
+                return;
+            }
+            if (sFocusedOwner == owner) {
+                sFocusedOwner = null;
+            }
+            for (Iterator<Request> it = sQueue.iterator(); it.hasNext();) {
+                if (it.next().filter.getOwner() == owner) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes a waiting thread. It stops counting as idle right away, so that the next request does
+     * not count on it too.
+     */
+    private static void wakeIdleThread() {
+        sIdleThreads--;
+        sWakeups++;
+        sLock.notify();
+    }
+
+    /**
+     * Removes and returns the request to run next, or null if none can run yet: the oldest one of
+     * the focused widget, otherwise the oldest one. Requests of a filter that is already running
+     * wait for it to complete.
+     */
+    private static Request take() {
+        Request next = null;
+        for (Request request : sQueue) {
+            if (request.filter.mRunning) {
+                continue;
+            }
+            if (request.filter.getOwner() == sFocusedOwner && sFocusedOwner != null) {
+                next = request;
+                break;
+            }
+            if (next == null) {
+                next = request;
+            }
+        }
+        if (next != null) {
+            sQueue.remove(next);
+            next.filter.mRunning = true;
+        }
+        return next;
+    }
+
+    private static class Request {
+        final PooledFilter filter;
+        final CharSequence constraint;
+        final FilterListener listener;
+
+        Request(PooledFilter filter, CharSequence constraint, FilterListener listener) {
+            this.filter = filter;
+            this.constraint = constraint;
+            this.listener = listener;
+        }
+    }
+
+    private static class Worker implements Runnable {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                Request request;
+                synchronized (sLock) {
+                    Request next = take();
+                    if (next == null) {
+                        sIdleThreads++;
+                        try {
+                            sLock.wait(IDLE_TIMEOUT);
+                        } catch (InterruptedException e) {
+                            // Treated as a timeout
+                        }
+                        if (sWakeups > 0) {
+                            sWakeups--;
+                        } else {
+                            // Timed out
+                            sIdleThreads--;
+                        }
+                        next = take();
+                        if (next == null) {
+                            sThreads--;
+                            return;
+                        }
+                    }
+                    request = next;
+                }
+                sHandler.post(request.filter.execute(request.constraint, request.listener));
+                synchronized (sLock) {
+                    request.filter.mRunning = false;
+                    if (!sQueue.isEmpty() && sIdleThreads > 0) {
+                        // A request held back while this filter was running can go now
+                        wakeIdleThread();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.zenlibs.historyedittext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+/**
+ * Adapter for the history part of the dropdown. With no constraint it shows the most recent
+ * values; filtering is delegated to a {@link Source}, which runs the query in the database
+ * instead of scanning the values in memory.
+ */
+class HistoryAdapter extends BaseAdapter implements Filterable {
+    private final LayoutInflater mInflater;
+    private final int mResource;
+    private final Source mSource;
+    private final List<String> mRecent;
+    private List<String> mItems;
+    private Filter mFilter;
+    // Incremented by each removal, so that results read before it are not narrowed down
+    private volatile int mRemovals;
+
+    HistoryAdapter(Context context, int resource, List<String> recent, Source source) {
+        mInflater = LayoutInflater.from(context);
+        mResource = resource;
+        mSource = source;
+        mRecent = recent;
+        mItems = recent;
+    }
+
+    @Override
+    public int getCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mItems.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null ? convertView : mInflater.inflate(mResource, parent, false));
+        view.setText(getItem(position));
+        return view;
+    }
+
+    /**
+     * Removes the value, and the ones <code>store</code> keeps as the same, from the list shown
+     * and from the recent values.
+     */
+    void remove(HistoryStore store, String text) {
+        mRemovals++;
+        HistoryText.removeEquivalent(store, mRecent, text);
+        if (mItems != mRecent) {
+            HistoryText.removeEquivalent(store, mItems, text);
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public Filter getFilter() {
+        if (mFilter == null) {
+            mFilter = new HistoryFilter();
+        }
+        return mFilter;
+    }
+
+    interface Source {
+        /**
+         * Called on a background thread, returns the values that match <code>constraint</code>.
+         */
+        List<String> query(String constraint);
+
+        /**
+         * Called on a background thread, returns whether <code>text</code> matches
+         * <code>constraint</code> the way the values returned by {@link #query(String)} do.
+         */
+        boolean matches(String text, String constraint);
+
+        /**
+         * Returns the maximum number of values returned by {@link #query(String)}. A result that
+         * reaches it may be missing some matches.
+         */
+        int getLimit();
+    }
+
+    private class HistoryFilter extends PooledFilter {
+        // Only touched by the filterings, which run one at a time
+        private String mLastConstraint;
+        private List<String> mLastValues;
+        private int mLastRemovals;
+
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            List<String> values;
+            if (constraint == null || constraint.length() == 0) {
+                values = mRecent;
+                mLastConstraint = null;
+            } else {
+                String query = constraint.toString();
+                int removals = mRemovals;
+                if (canNarrow(query, removals)) {
+                    // Whatever matches the longer constraint matched the previous one, and all of
+                    // those are known
+                    values = new ArrayList<String>();
+                    for (String value : mLastValues) {
+                        if (mSource.matches(value, query)) {
+                            values.add(value);
+                        }
+                    }
+                } else {
+                    values = mSource.query(query);
+                }
+                mLastConstraint = query;
+                // A copy, as the published list is changed on the UI thread by remove()
+                mLastValues = new ArrayList<String>(values);
+                mLastRemovals = removals;
+            }
+            FilterResults results = new FilterResults();
+            results.values = values;
+            results.count = values.size();
+            return results;
+        }
+
+        private boolean canNarrow(String query, int removals) {
+            return mLastConstraint != null && removals == mLastRemovals
+                    && mLastValues.size() < mSource.getLimit() && query.length() >= mLastConstraint.length()
+                    && HistoryText.matchesPrefix(query, mLastConstraint);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            mItems = results.values != null ? (List<String>) results.values : new ArrayList<String>();
+            if (results.count > 0) {
+                notifyDataSetChanged();
+            } else {
+                notifyDataSetInvalidated();
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.zenlibs.historyedittext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Process-wide cache of the most recent history values of each tag of each store, shared by every
+ * {@link HistoryEditText}. Its size is bounded by an estimate of the memory taken by the cached
+ * strings, and the least recently used tags are evicted first.
+ */
+class HistoryCache {
+    static final int DEFAULT_MAX_SIZE = 64 * 1024;
+    // Rough per-entry overhead of a String and its list slot, in bytes
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private static LruCache<Key, Snapshot> sCache = createCache(DEFAULT_MAX_SIZE);
+    // Incremented on every write and every commit, so that loads which raced with either do not
+    // store stale data
+    private static int sWriteCount;
+
+    /**
+     * Sets the maximum size of the cache, in bytes. The cached snapshots are dropped.
+     */
+    static synchronized void setMaxSize(int maxSize) {
+        sCache = createCache(maxSize);
+    }
+
+    /**
+     * Returns the <code>limit</code> most recent values of the tag, or null if they are not
+     * cached.
+     */
+    static synchronized List<String> get(HistoryStore store, String tag, int limit) {
+        Snapshot snapshot = sCache.get(new Key(store, tag));
+        if (snapshot == null || (snapshot.limit < limit && !snapshot.isComplete())) {
+            return null;
+        }
+        List<String> items = snapshot.items;
+        return new ArrayList<String>(items.subList(0, Math.min(limit, items.size())));
+    }
+
+    /**
+     * Returns a token to be passed to {@link #put(HistoryStore, String, List, int, int)} once the values read
+     * from the database are available.
+     */
+    static synchronized int beginLoad() {
+        return sWriteCount;
+    }
+
+    /**
+     * Stores the <code>limit</code> most recent values of the tag, unless a write happened since
+     * <code>token</code> was obtained.
+     */
+    static synchronized void put(HistoryStore store, String tag, List<String> items, int limit, int token) {
+        if (token == sWriteCount) {
+            sCache.put(new Key(store, tag), new Snapshot(new ArrayList<String>(items), limit, token));
+        }
+    }
+
+    /**
+     * Moves <code>text</code> to the front of the cached snapshot of the tag, if any. When the
+     * store does not order by recency, where the text lands is only known to the store, so the
+     * snapshot is dropped instead. The value is only queued for writing at this point; the
+     * returned token is to be passed to {@link #onCommitted(HistoryStore, Collection, int)} once
+     * it is in the store.
+     */
+    static synchronized int onInserted(HistoryStore store, String tag, String text) {
+        int token = ++sWriteCount;
+        Key key = new Key(store, tag);
+        if (store instanceof SqliteHistoryStore
+                && ((SqliteHistoryStore) store).getOrder() != SqliteHistoryStore.ORDER_RECENCY) {
+            sCache.remove(key);
+            return token;
+        }
+        Snapshot snapshot = sCache.get(key);
+        if (snapshot != null) {
+            List<String> items = new ArrayList<String>(snapshot.items);
+            HistoryText.removeEquivalent(store, items, text);
+            items.add(0, text);
+            if (items.size() > snapshot.limit) {
+                items.remove(items.size() - 1);
+            }
+            sCache.put(key, new Snapshot(items, snapshot.limit, snapshot.token));
+        }
+        return token;
+    }
+
+    /**
+     * Called once values of the tags, queued since <code>token</code> was returned by
+     * {@link #onInserted(HistoryStore, String, String)}, are in the store. A snapshot loaded since
+     * then was read without them, so it is dropped.
+     */
+    static synchronized void onCommitted(HistoryStore store, Collection<String> tags, int token) {
+        sWriteCount++;
+        for (String tag : tags) {
+            Key key = new Key(store, tag);
+            Snapshot snapshot = sCache.get(key);
+            if (snapshot != null && snapshot.token >= token) {
+                sCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drops the snapshot of the tag, after some of its values were removed from the store.
+     */
+    static synchronized void invalidate(HistoryStore store, String tag) {
+        sWriteCount++;
+        sCache.remove(new Key(store, tag));
+    }
+
+    /**
+     * Drops the snapshots of every tag of the store.
+     */
+    static synchronized void clear(HistoryStore store) {
+        sWriteCount++;
+        for (Key key : sCache.snapshot().keySet()) {
+            if (key.store == store) {
+                sCache.remove(key);
+            }
+        }
+    }
+
+    private static LruCache<Key, Snapshot> createCache(int maxSize) {
+        return new LruCache<Key, Snapshot>(Math.max(1, maxSize)) {
+            @Override
+            protected int sizeOf(Key key, Snapshot value) {
+                return value.size;
+            }
+        };
+    }
+
+    private static class Key {
+        final HistoryStore store;
+        final String tag;
+
+        Key(HistoryStore store, String tag) {
+            this.store = store;
+            this.tag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return store == other.store && (tag == null ? other.tag == null : tag.equals(other.tag));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(store) + (tag != null ? tag.hashCode() : 0);
+        }
+    }
+
+    private static class Snapshot {
+        final List<String> items;
+        // Number of values requested when it was loaded, it holds fewer only if the tag has fewer
+        final int limit;
+        // Token of the load it comes from
+        final int token;
+        final int size;
+
+        Snapshot(List<String> items, int limit, int token) {
+            this.items = Collections.unmodifiableList(items);
+            this.limit = limit;
+            this.token = token;
+            int size = 0;
+            for (String item : items) {
+                size += 2 * item.length() + ENTRY_OVERHEAD;
+            }
+            this.size = size;
+        }
+
+        boolean isComplete() {
+            return items.size() < limit;
+        }
+    }
+}
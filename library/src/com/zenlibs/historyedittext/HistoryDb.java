@@ -1,71 +1,597 @@
 package com.zenlibs.historyedittext;
 
-import android.content.ContentValues;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 class HistoryDb {
     private static final String HISTORY_TABLE = "history";
     private static final String COLUMN_ID = "_id";
     private static final String COLUMN_TAG = "tag";
+    private static final String COLUMN_TAG_ID = "tag_id";
     private static final String COLUMN_TEXT = "text";
     private static final String COLUMN_TIME = "time";
-    private static final String[] QUERY_BY_TAG_COLUMNS = new String[] { COLUMN_TEXT };
-    private static final String QUERY_BY_TAG_SELECTION = COLUMN_TAG + "=?";
-    private static final String QUERY_BY_TAG_ORDER = COLUMN_TIME + " DESC";
-    private static final String QUERY_BY_TAG_TEXT_SELECTION = COLUMN_TAG + "=? AND " + COLUMN_TEXT + "=?";
+    private static final String COLUMN_USES = "uses";
+    private static final String COLUMN_SCORE = "score";
+    private static final String COLUMN_NORM = "norm";
+    private static final String TAGS_TABLE = "tags";
+    private static final String COLUMN_NAME = "name";
+    private static final String INDEX_TAG_TEXT = "history_tag_text";
+    private static final String INDEX_TAG_TIME = "history_tag_time";
+    private static final String INDEX_TAG_TEXT_NOCASE = "history_tag_text_nocase";
+    private static final String INDEX_TAG_SCORE = "history_tag_score";
+    private static final String INDEX_TAG_NORM = "history_tag_norm";
+    /**
+     * Time it takes for the weight of a use in the frecency score to halve, in milliseconds.
+     */
+    private static final double FRECENCY_HALF_LIFE = 7 * 24 * 60 * 60 * 1000.0;
+    // Queries are kept as constant strings so that they hit the prepared statement cache of the
+    // connection. Each comes in two orders, by recency and by frecency.
+    private static final String[] ORDERS = { COLUMN_TIME + " DESC", COLUMN_SCORE + " DESC" };
+    private static final String QUERY_BY_TAG_ALL = "SELECT " + COLUMN_TEXT + " FROM " + HISTORY_TABLE + " WHERE "
+            + COLUMN_TAG_ID + "=? ORDER BY " + ORDERS[0];
+    private static final String[] QUERY_BY_TAG = new String[ORDERS.length];
+    private static final String[] QUERY_BY_TAG_PREFIX = new String[ORDERS.length];
+    private static final String DELETE_ENTRY = "DELETE FROM " + HISTORY_TABLE + " WHERE " + COLUMN_TAG_ID
+            + "=? AND " + COLUMN_NORM + "=?";
+    private static final String QUERY_ENTRY = "SELECT t." + COLUMN_NAME + ", h." + COLUMN_TEXT + ", h."
+            + COLUMN_TIME + " FROM " + HISTORY_TABLE + " h JOIN " + TAGS_TABLE + " t ON t." + COLUMN_ID + "=h."
+            + COLUMN_TAG_ID + " WHERE h." + COLUMN_ID + "=?";
+    private static final String CLEAR = "DELETE FROM " + HISTORY_TABLE;
+    // Sets every column of an entry, keeping its _id if it already exists
+    private static final String RESTORE = "INSERT OR REPLACE INTO " + HISTORY_TABLE + " (" + COLUMN_ID + ", "
+            + COLUMN_TAG_ID + ", " + COLUMN_TEXT + ", " + COLUMN_TIME + ", " + COLUMN_USES + ", " + COLUMN_SCORE
+            + ", " + COLUMN_NORM + ") VALUES ((SELECT " + COLUMN_ID + " FROM " + HISTORY_TABLE + " WHERE "
+            + COLUMN_TAG_ID + "=?1 AND " + COLUMN_NORM + "=?6), ?1, ?2, ?3, ?4, ?5, ?6)";
+    private static final String EXPORT = "SELECT t." + COLUMN_NAME + ", h." + COLUMN_TEXT + ", h." + COLUMN_TIME
+            + ", h." + COLUMN_USES + ", h." + COLUMN_SCORE + " FROM " + HISTORY_TABLE + " h JOIN " + TAGS_TABLE
+            + " t ON t." + COLUMN_ID + "=h." + COLUMN_TAG_ID + " ORDER BY h." + COLUMN_ID;
+    private static final int IMPORT_BATCH_SIZE = 5000;
+    // Pages are read by seeking past the (time, _id) of the last row of the previous page, which
+    // is as cheap for the last page as for the first, unlike an OFFSET. Indexed by
+    // (prefix ? 2 : 0) + (seek ? 1 : 0).
+    private static final String[] QUERY_PAGE = new String[4];
+    private static final String TRIM_BY_AGE_SELECTION = COLUMN_TAG_ID + "=? AND " + COLUMN_TIME + "<?";
+    // Rows older than the one at the cap, found by seeking into the (tag, time) index
+    private static final String TRIM_BY_COUNT_SELECTION = COLUMN_TAG_ID + "=? AND " + COLUMN_TIME + "<(SELECT "
+            + COLUMN_TIME + " FROM " + HISTORY_TABLE + " WHERE " + COLUMN_TAG_ID + "=? ORDER BY " + COLUMN_TIME
+            + " DESC LIMIT 1 OFFSET ?)";
+    private static final String QUERY_TAG_ID = "select " + COLUMN_ID + " from " + TAGS_TABLE + " where "
+            + COLUMN_NAME + "=?";
+    private static final String INSERT_TAG = "insert or ignore into " + TAGS_TABLE + "(" + COLUMN_NAME
+            + ") values (?)";
+    private static final String FTS_TABLE = "history_fts";
+    private static final String FTS_COLUMN_DOCID = "docid";
+    private static final String[] QUERY_BY_TAG_TOKENS = new String[ORDERS.length];
+    /**
+     * The score is kept in time units: a value used at times t1..tn scores s such that
+     * 2^((s - now) / half-life) equals the sum of 2^((ti - now) / half-life), the decayed use
+     * count. The order it gives does not depend on the current time, so it can be indexed. Adding
+     * a use at time t gives s' = t + half-life * log2(1 + 2^x), x = (s - t) / half-life. SQLite has
+     * no logarithm, so that is written as max(x, 0) + log2(1 + y), y = 2^-|x|, with y computed
+     * from a bit shift and a linear interpolation, and log2(1 + y) from a quadratic fit. The error
+     * stays within a fraction of a half-life.
+     */
+    private static final String UPSERT = "insert or replace into " + HISTORY_TABLE + " (" + COLUMN_ID + ", "
+            + COLUMN_TAG_ID + ", " + COLUMN_TEXT + ", " + COLUMN_TIME + ", " + COLUMN_USES + ", " + COLUMN_SCORE + ", "
+            + COLUMN_NORM + ") select id, ?1, ?2, ?3, ifnull(uses, 0) + 1, case when id is null then ?3 else ?3 + "
+            + FRECENCY_HALF_LIFE + " * (max(x, 0) + y * (1.4427 - 0.4427 * y)) end, ?4 from (select id, uses, x,"
+            + " (1 - (abs(x) - min(cast(abs(x) as integer), 62)) / 2.0) / (1 << min(cast(abs(x) as integer), 62))"
+            + " as y from (select old." + COLUMN_ID + " as id, old." + COLUMN_USES + " as uses, (old." + COLUMN_SCORE
+            + " - ?3) / " + FRECENCY_HALF_LIFE + " as x from (select 1) left join " + HISTORY_TABLE + " old on old."
+            + COLUMN_TAG_ID + "=?1 and old." + COLUMN_NORM + "=?4))";
+    private static final int STATEMENT_UPSERT = 0;
+    private static final int STATEMENT_DELETE_ENTRY = 1;
+    private static final int STATEMENT_CLEAR = 2;
+    private static final int STATEMENT_RESTORE = 3;
+    private static final String[] STATEMENTS = { UPSERT, DELETE_ENTRY, CLEAR, RESTORE };
     private static HistoryDbSQLiteHelper mHelper;
+    private static SQLiteDatabase sDb;
+    private static int sRefCount;
+    private static final Object sRefLock = new Object();
+    private static volatile boolean sFullTextIndexReady;
+    // Not the class lock, so that acquire() does not wait for the index to be built
+    private static final Object sFullTextIndexLock = new Object();
+    private static volatile SqliteHistoryStore.MigrationListener sMigrationListener;
+    // Ids never change once assigned, so they are kept for the life of the process
+    private static final Map<String, Long> sTagIds = new HashMap<String, Long>();
+    // Write statements compiled on sStatementsDb, closed along with it
+    private static final SQLiteStatement[] sStatements = new SQLiteStatement[STATEMENTS.length];
+    private static SQLiteDatabase sStatementsDb;
+
+    static {
+        for (int i = 0; i < ORDERS.length; i++) {
+            QUERY_BY_TAG[i] = "SELECT " + COLUMN_TEXT + " FROM " + HISTORY_TABLE + " WHERE " + COLUMN_TAG_ID
+                    + "=? ORDER BY " + ORDERS[i] + " LIMIT ?";
+            QUERY_BY_TAG_PREFIX[i] = "SELECT " + COLUMN_TEXT + " FROM " + HISTORY_TABLE + " WHERE " + COLUMN_TAG_ID
+                    + "=? AND " + COLUMN_TEXT + " COLLATE NOCASE >=? AND " + COLUMN_TEXT + " COLLATE NOCASE <?"
+                    + " ORDER BY " + ORDERS[i] + " LIMIT ?";
+            QUERY_BY_TAG_TOKENS[i] = "SELECT h." + COLUMN_TEXT + " FROM " + HISTORY_TABLE + " h JOIN " + FTS_TABLE
+                    + " f ON f." + FTS_COLUMN_DOCID + "=h." + COLUMN_ID + " WHERE " + FTS_TABLE + " MATCH ? AND h."
+                    + COLUMN_TAG_ID + "=? ORDER BY h." + ORDERS[i] + " LIMIT ?";
+        }
+        for (int i = 0; i < QUERY_PAGE.length; i++) {
+            QUERY_PAGE[i] = "SELECT " + COLUMN_ID + ", " + COLUMN_TEXT + ", " + COLUMN_TIME + " FROM " + HISTORY_TABLE
+                    + " WHERE " + COLUMN_TAG_ID + "=?"
+                    + ((i & 2) != 0 ? " AND " + COLUMN_TEXT + " COLLATE NOCASE >=? AND " + COLUMN_TEXT
+                            + " COLLATE NOCASE <?" : "")
+                    + ((i & 1) != 0 ? " AND " + COLUMN_TIME + "<=? AND (" + COLUMN_TIME + "<? OR " + COLUMN_ID
+                            + "<?)" : "")
+                    + " ORDER BY " + COLUMN_TIME + " DESC, " + COLUMN_ID + " DESC LIMIT ?";
+        }
+    }
 
+    /**
+     * Deletes every entry. The tags are kept, since their ids may be cached by other threads.
+     */
     public static void clear(SQLiteDatabase db) {
-        db.delete(HISTORY_TABLE, null, null);
+        SQLiteStatement statement = getStatement(db, STATEMENT_CLEAR);
+        synchronized (statement) {
+            statement.execute();
+        }
+    }
+
+    /**
+     * Returns the id of the tag, adding it to the tags table if needed. The new row is cached
+     * right away, so this must not be called inside a transaction that may be rolled back.
+     */
+    public static long getTagId(SQLiteDatabase db, String tag) {
+        long id = findTagId(db, tag);
+        if (id < 0) {
+            db.execSQL(INSERT_TAG, new Object[] { tag });
+            id = findTagId(db, tag);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the tag, or -1 if it has no entries yet.
+     */
+    public static long findTagId(SQLiteDatabase db, String tag) {
+        synchronized (sTagIds) {
+            Long id = sTagIds.get(tag);
+            if (id != null) {
+                return id;
+            }
+        }
+        Cursor c = db.rawQuery(QUERY_TAG_ID, new String[] { tag });
+        try {
+            if (!c.moveToFirst()) {
+                return -1;
+            }
+            long id = c.getLong(0);
+            synchronized (sTagIds) {
+                sTagIds.put(tag, id);
+            }
+            return id;
+        } finally {
+            c.close();
+        }
+    }
+
+    public static void insertEntry(SQLiteDatabase db, long tagId, String text, boolean stripAccents) {
+        insertEntry(db, tagId, text, System.currentTimeMillis(), stripAccents);
     }
 
-    public static void insertEntry(SQLiteDatabase db, String tag, String text) {
+    /**
+     * Adds the entry, or updates the one of the tag with the same normalized text, which then
+     * shows the text as given here. See {@link HistoryText#normalize(String, boolean)}.
+     */
+    public static void insertEntry(SQLiteDatabase db, long tagId, String text, long time, boolean stripAccents) {
         if (text != null) {
             text = text.trim();
 
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_TAG, tag);
-            values.put(COLUMN_TEXT, text);
-            values.put(COLUMN_TIME, System.currentTimeMillis());
+            // The unique (tag, norm) index turns an existing entry into a conflict, which is
+            // resolved by replacing it with the same _id and the updated use count and score
+            SQLiteStatement statement = getStatement(db, STATEMENT_UPSERT);
+            synchronized (statement) {
+                statement.bindLong(1, tagId);
+                statement.bindString(2, text);
+                statement.bindLong(3, time);
+                statement.bindString(4, HistoryText.normalize(text, stripAccents));
+                statement.execute();
+            }
+        }
+    }
+
+    /**
+     * Deletes the entry of the tag with the same normalized text.
+     */
+    public static void deleteEntry(SQLiteDatabase db, long tagId, String text, boolean stripAccents) {
+        SQLiteStatement statement = getStatement(db, STATEMENT_DELETE_ENTRY);
+        synchronized (statement) {
+            statement.bindLong(1, tagId);
+            statement.bindString(2, HistoryText.normalize(text, stripAccents));
+            statement.execute();
+        }
+    }
+
+    /**
+     * Returns a cursor over the tag name, the text and the time of the entry with the given id,
+     * empty if there is none.
+     */
+    public static Cursor queryEntry(SQLiteDatabase db, long id) {
+        return db.rawQuery(QUERY_ENTRY, new String[] { Long.toString(id) });
+    }
+
+    /**
+     * Deletes the entry with the given id. Returns whether there was one.
+     */
+    public static boolean deleteEntryById(SQLiteDatabase db, long id) {
+        return db.delete(HISTORY_TABLE, COLUMN_ID + "=?", new String[] { Long.toString(id) }) > 0;
+    }
+
+    /**
+     * Writes every entry to <code>writer</code> as a JSON array of objects, one row at a time.
+     */
+    public static void exportEntries(SQLiteDatabase db, JsonWriter writer) throws IOException {
+        Cursor c = db.rawQuery(EXPORT, null);
+        try {
+            writer.beginArray();
+            while (c.moveToNext()) {
+                writer.beginObject();
+                writer.name(COLUMN_TAG).value(c.getString(0));
+                writer.name(COLUMN_TEXT).value(c.getString(1));
+                writer.name(COLUMN_TIME).value(c.getLong(2));
+                writer.name(COLUMN_USES).value(c.getLong(3));
+                writer.name(COLUMN_SCORE).value(c.getDouble(4));
+                writer.endObject();
+            }
+            writer.endArray();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Reads entries in the format written by {@link #exportEntries} and stores them, replacing
+     * the existing ones with the same text, in transactions of {@link #IMPORT_BATCH_SIZE}
+     * entries. Only the tag and the text are required. The batches committed before an error
+     * are kept. Returns the number of entries read.
+     */
+    public static int importEntries(SQLiteDatabase db, JsonReader reader, boolean stripAccents)
+            throws IOException {
+        Map<String, Long> tagIds = new HashMap<String, Long>();
+        int count = 0;
+        reader.beginArray();
+        db.beginTransaction();
+        try {
+            while (reader.hasNext()) {
+                String tag = null;
+                String text = null;
+                long time = System.currentTimeMillis();
+                long uses = 1;
+                double score = Double.NaN;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.skipValue();
+                    } else if (COLUMN_TAG.equals(name)) {
+                        tag = reader.nextString();
+                    } else if (COLUMN_TEXT.equals(name)) {
+                        text = reader.nextString();
+                    } else if (COLUMN_TIME.equals(name)) {
+                        time = reader.nextLong();
+                    } else if (COLUMN_USES.equals(name)) {
+                        uses = reader.nextLong();
+                    } else if (COLUMN_SCORE.equals(name)) {
+                        score = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (tag == null || text == null) {
+                    throw new IOException("History entry without a tag or a text at entry " + count);
+                }
+                Long tagId = tagIds.get(tag);
+                if (tagId == null) {
+                    // New tags must not be added in a transaction that may be rolled back
+                    db.setTransactionSuccessful();
+                    db.endTransaction();
+                    tagId = getTagId(db, tag);
+                    tagIds.put(tag, tagId);
+                    db.beginTransaction();
+                }
+                SQLiteStatement statement = getStatement(db, STATEMENT_RESTORE);
+                synchronized (statement) {
+                    statement.bindLong(1, tagId);
+                    statement.bindString(2, text.trim());
+                    statement.bindLong(3, time);
+                    statement.bindLong(4, Math.max(1, uses));
+                    statement.bindDouble(5, Double.isNaN(score) ? time : score);
+                    statement.bindString(6, HistoryText.normalize(text, stripAccents));
+                    statement.execute();
+                }
+                if (++count % IMPORT_BATCH_SIZE == 0) {
+                    db.setTransactionSuccessful();
+                    db.endTransaction();
+                    db.beginTransaction();
+                }
+            }
+            reader.endArray();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the compiled statement, compiling it on first use. Statements are shared by all the
+     * threads, so they must be bound and executed while holding their lock.
+     */
+    private static SQLiteStatement getStatement(SQLiteDatabase db, int which) {
+        synchronized (sStatements) {
+            if (sStatementsDb != db) {
+                closeStatements();
+                sStatementsDb = db;
+            }
+            if (sStatements[which] == null) {
+                sStatements[which] = db.compileStatement(STATEMENTS[which]);
+            }
+            return sStatements[which];
+        }
+    }
+
+    private static void closeStatements() {
+        synchronized (sStatements) {
+            for (int i = 0; i < sStatements.length; i++) {
+                if (sStatements[i] != null) {
+                    sStatements[i].close();
+                    sStatements[i] = null;
+                }
+            }
+            sStatementsDb = null;
+        }
+    }
+
+    /**
+     * Deletes the entries of the tag older than <code>minTime</code>, then those beyond the
+     * <code>maxEntries</code> most recent. A bound of zero or less is ignored. Returns the number
+     * of rows deleted.
+     */
+    public static int trimTag(SQLiteDatabase db, long tagId, int maxEntries, long minTime) {
+        String tag = Long.toString(tagId);
+        int count = 0;
+        if (minTime > 0) {
+            count += db.delete(HISTORY_TABLE, TRIM_BY_AGE_SELECTION, new String[] { tag, Long.toString(minTime) });
+        }
+        if (maxEntries > 0) {
+            count += db.delete(HISTORY_TABLE, TRIM_BY_COUNT_SELECTION, new String[] { tag, tag,
+                    Integer.toString(maxEntries - 1) });
+        }
+        return count;
+    }
+
+    public static Cursor queryByTag(SQLiteDatabase db, long tagId) {
+        return db.rawQuery(QUERY_BY_TAG_ALL, new String[] { Long.toString(tagId) });
+    }
+
+    /**
+     * Returns the first <code>limit</code> entries for the tag, the most recent or, if
+     * <code>byFrecency</code> is set, the most frecent ones. Served by the (tag, time) or the
+     * (tag, score) index, so only the returned rows are read.
+     */
+    public static Cursor queryByTag(SQLiteDatabase db, long tagId, int limit, boolean byFrecency) {
+        return db.rawQuery(QUERY_BY_TAG[getOrder(byFrecency)], new String[] { Long.toString(tagId),
+                Integer.toString(limit) });
+    }
+
+    /**
+     * Returns the first <code>limit</code> entries for the tag that start with <code>prefix</code>,
+     * ignoring case. The prefix is turned into a range over the NOCASE (tag, text) index, which
+     * SQLite can seek into, rather than into a LIKE pattern.
+     */
+    public static Cursor queryByTagPrefix(SQLiteDatabase db, long tagId, String prefix, int limit,
+            boolean byFrecency) {
+        String lower = HistoryText.toNoCase(prefix);
+        String upper = nextNoCasePrefix(lower);
+        if (upper == null) {
+            return queryByTag(db, tagId, limit, byFrecency);
+        }
+        return db.rawQuery(QUERY_BY_TAG_PREFIX[getOrder(byFrecency)], new String[] { Long.toString(tagId), lower,
+                upper, Integer.toString(limit) });
+    }
+
+    /**
+     * Returns the first <code>limit</code> entries for the tag in which every word of
+     * <code>query</code> is the prefix of some word, wherever it is in the text. Served by the
+     * full-text index, which is created on first use.
+     */
+    public static Cursor queryByTagTokens(SQLiteDatabase db, long tagId, String query, int limit,
+            boolean byFrecency) {
+        List<String> tokens = HistoryText.tokenize(query);
+        if (tokens.isEmpty()) {
+            return queryByTag(db, tagId, limit, byFrecency);
+        }
+        ensureFullTextIndex(db);
+        StringBuilder match = new StringBuilder();
+        for (String token : tokens) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(token).append('*');
+        }
+        return db.rawQuery(QUERY_BY_TAG_TOKENS[getOrder(byFrecency)], new String[] { match.toString(),
+                Long.toString(tagId), Integer.toString(limit) });
+    }
+
+    /**
+     * Returns up to <code>limit</code> entries of the tag, most recent first, that start with
+     * <code>prefix</code> (ignoring case) if it is not null, and come after the entry with the
+     * given time and id if <code>afterId</code> is not negative. The columns are the id, the
+     * text and the time.
+     */
+    public static Cursor queryPage(SQLiteDatabase db, long tagId, String prefix, long afterTime, long afterId,
+            int limit) {
+        String lower = prefix != null ? HistoryText.toNoCase(prefix) : null;
+        String upper = lower != null ? nextNoCasePrefix(lower) : null;
+        boolean seek = afterId >= 0;
+        String[] args = new String[1 + (upper != null ? 2 : 0) + (seek ? 3 : 0) + 1];
+        int i = 0;
+        args[i++] = Long.toString(tagId);
+        if (upper != null) {
+            args[i++] = lower;
+            args[i++] = upper;
+        }
+        if (seek) {
+            args[i++] = Long.toString(afterTime);
+            args[i++] = Long.toString(afterTime);
+            args[i++] = Long.toString(afterId);
+        }
+        args[i] = Integer.toString(limit);
+        return db.rawQuery(QUERY_PAGE[(upper != null ? 2 : 0) + (seek ? 1 : 0)], args);
+    }
+
+    private static int getOrder(boolean byFrecency) {
+        return byFrecency ? 1 : 0;
+    }
 
-            // Test if it already exists
-            Cursor c = queryByTagText(db, tag, text);
-            if (c.getCount() > 0) {
-                // It's an update
-                db.update(HISTORY_TABLE, values, QUERY_BY_TAG_TEXT_SELECTION, new String[] { tag, text });
-            } else {
-                //  It's an insert
-                db.insert(HISTORY_TABLE, null, values);
+    /**
+     * Creates the full-text shadow table of <code>history</code>, and the triggers that keep it in
+     * sync, if they do not exist yet. Existing rows are indexed in the same transaction.
+     */
+    private static void ensureFullTextIndex(SQLiteDatabase db) {
+        if (sFullTextIndexReady) {
+            return;
+        }
+        synchronized (sFullTextIndexLock) {
+            if (sFullTextIndexReady) {
+                return;
+            }
+            Cursor c = db.rawQuery("select 1 from sqlite_master where name=?", new String[] { FTS_TABLE });
+            boolean exists;
+            try {
+                exists = c.moveToFirst();
+            } finally {
+                c.close();
+            }
+            if (!exists) {
+                db.beginTransaction();
+                try {
+                    createFullTextIndex(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
             }
+            sFullTextIndexReady = true;
         }
     }
 
-    public static Cursor queryByTag(SQLiteDatabase db, String tag) {
-        return db.query(HISTORY_TABLE, QUERY_BY_TAG_COLUMNS, QUERY_BY_TAG_SELECTION, new String[] { tag }, null, null,
-                QUERY_BY_TAG_ORDER);
+    private static void createFullTextIndex(SQLiteDatabase db) {
+        db.execSQL("create virtual table " + FTS_TABLE + " using fts3(" + COLUMN_TEXT + ");");
+        // A replaced row is deleted without firing delete triggers, so its shadow goes first
+        db.execSQL("create trigger " + FTS_TABLE + "_before_insert before insert on " + HISTORY_TABLE
+                + " begin delete from " + FTS_TABLE + " where " + FTS_COLUMN_DOCID + " in (select " + COLUMN_ID
+                + " from " + HISTORY_TABLE + " where " + COLUMN_TAG_ID + "=new." + COLUMN_TAG_ID + " and " + COLUMN_NORM
+                + "=new." + COLUMN_NORM + "); end;");
+        db.execSQL("create trigger " + FTS_TABLE + "_after_insert after insert on " + HISTORY_TABLE
+                + " begin insert into " + FTS_TABLE + "(" + FTS_COLUMN_DOCID + ", " + COLUMN_TEXT + ") values (new."
+                + COLUMN_ID + ", new." + COLUMN_TEXT + "); end;");
+        db.execSQL("create trigger " + FTS_TABLE + "_after_update after update of " + COLUMN_TEXT + " on "
+                + HISTORY_TABLE + " begin update " + FTS_TABLE + " set " + COLUMN_TEXT + "=new." + COLUMN_TEXT
+                + " where " + FTS_COLUMN_DOCID + "=old." + COLUMN_ID + "; end;");
+        db.execSQL("create trigger " + FTS_TABLE + "_after_delete after delete on " + HISTORY_TABLE
+                + " begin delete from " + FTS_TABLE + " where " + FTS_COLUMN_DOCID + "=old." + COLUMN_ID + "; end;");
+        db.execSQL("insert into " + FTS_TABLE + "(" + FTS_COLUMN_DOCID + ", " + COLUMN_TEXT + ") select " + COLUMN_ID
+                + ", " + COLUMN_TEXT + " from " + HISTORY_TABLE + ";");
     }
 
-    private static Cursor queryByTagText(SQLiteDatabase db, String tag, String text) {
-        return db.query(HISTORY_TABLE, QUERY_BY_TAG_COLUMNS, QUERY_BY_TAG_TEXT_SELECTION, new String[] { tag, text },
-                null, null, QUERY_BY_TAG_ORDER);
+    /**
+     * Returns the smallest string that sorts after every string starting with <code>prefix</code>
+     * under the NOCASE collation, or null if there is no such bound (including an empty prefix).
+     */
+    static String nextNoCasePrefix(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        char next = (char) (prefix.charAt(end - 1) + 1);
+        if (next >= 'A' && next <= 'Z') {
+            // Upper case letters compare as lower case ones, the next distinct value is '['
+            next = 'Z' + 1;
+        }
+        return prefix.substring(0, end - 1) + next;
     }
 
-    static SQLiteDatabase getReadable(Context context) {
-        HistoryDbSQLiteHelper helper = getHelper(context);
-        return helper.getReadableDatabase();
+    /**
+     * Returns the process-wide connection, opening it if needed, and takes a reference to it.
+     * Opening runs the schema upgrades, so this must not be called from the UI thread. Every call
+     * must be balanced with {@link #release()}.
+     */
+    static SQLiteDatabase acquire(Context context) {
+        retain();
+        synchronized (HistoryDb.class) {
+            if (sDb == null || !sDb.isOpen()) {
+                sDb = getHelper(context).getWritableDatabase();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                    // Later versions enable it in the helper, before the database is opened
+                    sDb.enableWriteAheadLogging();
+                }
+            }
+            return sDb;
+        }
     }
 
-    static SQLiteDatabase getWritable(Context context) {
-        HistoryDbSQLiteHelper helper = getHelper(context);
-        return helper.getWritableDatabase();
+    /**
+     * Takes a reference to the connection without opening it, so that it stays open between
+     * operations. Safe to call from the UI thread, as it never waits for the database to open.
+     */
+    static void retain() {
+        synchronized (sRefLock) {
+            sRefCount++;
+        }
     }
 
-    private static HistoryDbSQLiteHelper getHelper(Context context) {
+    /**
+     * Releases a reference taken with {@link #acquire(Context)} or {@link #retain()}. The
+     * connection is closed when the last reference is released.
+     */
+    static void release() {
+        synchronized (sRefLock) {
+            if (--sRefCount > 0) {
+                return;
+            }
+        }
+        synchronized (HistoryDb.class) {
+            synchronized (sRefLock) {
+                // Somebody may have acquired it again in the meantime
+                if (sRefCount > 0) {
+                    return;
+                }
+            }
+            if (sDb != null) {
+                closeStatements();
+                sDb.close();
+                sDb = null;
+            }
+        }
+    }
+
+    private static synchronized HistoryDbSQLiteHelper getHelper(Context context) {
         if (mHelper == null) {
-            mHelper = new HistoryDbSQLiteHelper(context);
+            mHelper = new HistoryDbSQLiteHelper(context.getApplicationContext());
         }
         return mHelper;
     }
@@ -73,23 +599,323 @@ class HistoryDb {
     static class HistoryDbSQLiteHelper extends SQLiteOpenHelper {
 
         private static final String DATABASE_NAME = "historyedittext.db";
-        private static final int DATABASE_VERSION = 1;
+        private static final int DATABASE_VERSION = 6;
+        // Left behind by a rebuild until all its rows have been moved
+        private static final String OLD_HISTORY_TABLE = HISTORY_TABLE + "_old";
+        private static final int REBUILD_CHUNK_SIZE = 500;
+
+        /**
+         * Upgrade steps, in version order. Each one takes the schema from the previous version to
+         * its own, and runs in the upgrade transaction along with the ones after it.
+         */
+        private static final Migration[] MIGRATIONS = {
+                new Migration(2) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        upgradeToVersion2(db);
+                    }
+                },
+                new Migration(3) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        createQueryIndexes(db, COLUMN_TAG);
+                    }
+                },
+                new Migration(4) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        upgradeToVersion4(db);
+                    }
+                },
+                new Migration(5) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        upgradeToVersion5(db);
+                    }
+                },
+                new Migration(6) {
+                    @Override
+                    void migrate(SQLiteDatabase db) {
+                        upgradeToVersion6(db);
+                    }
+                } };
+
+        private int mUpgradedFrom = -1;
+        private long mUpgradeStart;
 
         public HistoryDbSQLiteHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                setWriteAheadLoggingEnabled(true);
+            }
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
+            createTagsTable(db);
             db.execSQL("create table " + HISTORY_TABLE + "(" + COLUMN_ID + " integer primary key autoincrement, "
-                    + COLUMN_TAG + " text not null, " + COLUMN_TEXT + " text not null, " + COLUMN_TIME + " long);");
+                    + COLUMN_TAG_ID + " integer not null, " + COLUMN_TEXT + " text not null, " + COLUMN_TIME
+                    + " long, " + COLUMN_USES + " integer not null default 1, " + COLUMN_SCORE + " real, "
+                    + COLUMN_NORM + " text);");
+            createNormIndex(db);
+            createQueryIndexes(db, COLUMN_TAG_ID);
+            createScoreIndex(db, COLUMN_TAG_ID);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            db.execSQL("drop table if exists " + HISTORY_TABLE);
-            onCreate(db);
+            mUpgradedFrom = oldVersion;
+            mUpgradeStart = SystemClock.elapsedRealtime();
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version > oldVersion && migration.version <= newVersion) {
+                    migration.migrate(db);
+                }
+            }
+        }
+
+        /**
+         * Finishes the table rebuild left by an upgrade, or by an earlier run that was interrupted,
+         * then reports how long the upgrade took. This is still part of opening the database, so it
+         * happens before anybody gets to read from it.
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (db.isReadOnly()) {
+                return;
+            }
+            if (mUpgradedFrom < 0) {
+                mUpgradeStart = SystemClock.elapsedRealtime();
+            }
+            boolean rebuilt = finishRebuild(db);
+            rebuilt |= finishNormalization(db);
+            if (mUpgradedFrom >= 0 || rebuilt) {
+                SqliteHistoryStore.MigrationListener listener = sMigrationListener;
+                if (listener != null) {
+                    int oldVersion = mUpgradedFrom >= 0 ? mUpgradedFrom : DATABASE_VERSION;
+                    listener.onMigrated(oldVersion, DATABASE_VERSION, SystemClock.elapsedRealtime() - mUpgradeStart);
+                }
+                mUpgradedFrom = -1;
+            }
         }
+
+        private static void createTagsTable(SQLiteDatabase db) {
+            db.execSQL("create table " + TAGS_TABLE + "(" + COLUMN_ID + " integer primary key autoincrement, "
+                    + COLUMN_NAME + " text not null unique);");
+        }
+
+        private static void createVersion5HistoryTable(SQLiteDatabase db) {
+            db.execSQL("create table " + HISTORY_TABLE + "(" + COLUMN_ID + " integer primary key autoincrement, "
+                    + COLUMN_TAG_ID + " integer not null, " + COLUMN_TEXT + " text not null, " + COLUMN_TIME
+                    + " long, " + COLUMN_USES + " integer not null default 1, " + COLUMN_SCORE + " real);");
+        }
+
+        private static void createScoreIndex(SQLiteDatabase db, String tagColumn) {
+            db.execSQL("create index " + INDEX_TAG_SCORE + " on " + HISTORY_TABLE + "(" + tagColumn + ", "
+                    + COLUMN_SCORE + ");");
+        }
+
+        /**
+         * Existing rows count as a single use at the time they were last entered.
+         */
+        private static void upgradeToVersion4(SQLiteDatabase db) {
+            db.execSQL("alter table " + HISTORY_TABLE + " add column " + COLUMN_USES + " integer not null default 1;");
+            db.execSQL("alter table " + HISTORY_TABLE + " add column " + COLUMN_SCORE + " real;");
+            db.execSQL("update " + HISTORY_TABLE + " set " + COLUMN_SCORE + "=" + COLUMN_TIME + ";");
+            createScoreIndex(db, COLUMN_TAG);
+        }
+
+        /**
+         * Moves the tag names to their own table and keys <code>history</code> by their ids. The
+         * old table is only set aside here, its rows are moved by {@link #finishRebuild}. The
+         * full-text index is dropped along with its triggers, and is rebuilt the next time it is
+         * used.
+         */
+        private static void upgradeToVersion5(SQLiteDatabase db) {
+            dropFullTextIndex(db);
+            // The indexes would follow the table and keep their names, which the new ones need
+            db.execSQL("drop index " + INDEX_TAG_TEXT + ";");
+            db.execSQL("drop index " + INDEX_TAG_TIME + ";");
+            db.execSQL("drop index " + INDEX_TAG_TEXT_NOCASE + ";");
+            db.execSQL("drop index " + INDEX_TAG_SCORE + ";");
+            db.execSQL("alter table " + HISTORY_TABLE + " rename to " + OLD_HISTORY_TABLE + ";");
+            createTagsTable(db);
+            createVersion5HistoryTable(db);
+            createTagTextIndex(db, COLUMN_TAG_ID);
+            createQueryIndexes(db, COLUMN_TAG_ID);
+            createScoreIndex(db, COLUMN_TAG_ID);
+        }
+
+        /**
+         * Moves the rows of the table set aside by {@link #upgradeToVersion5} into the new one,
+         * {@link #REBUILD_CHUNK_SIZE} at a time, each chunk in its own transaction. A chunk is
+         * deleted from the old table as it is copied, so an interrupted rebuild picks up where it
+         * stopped. Row ids are kept. Returns whether there was anything to rebuild.
+         */
+        private static boolean finishRebuild(SQLiteDatabase db) {
+            if (DatabaseUtils.longForQuery(db, "select count(*) from sqlite_master where type='table' and name=?",
+                    new String[] { OLD_HISTORY_TABLE }) == 0) {
+                return false;
+            }
+            String chunk = "(select * from " + OLD_HISTORY_TABLE + " order by " + COLUMN_ID + " limit "
+                    + REBUILD_CHUNK_SIZE + ")";
+            String remaining = "select exists (select 1 from " + OLD_HISTORY_TABLE + ")";
+            while (DatabaseUtils.longForQuery(db, remaining, null) != 0) {
+                db.beginTransaction();
+                try {
+                    db.execSQL("insert or ignore into " + TAGS_TABLE + "(" + COLUMN_NAME + ") select distinct "
+                            + COLUMN_TAG + " from " + chunk + ";");
+                    db.execSQL("insert into " + HISTORY_TABLE + "(" + COLUMN_ID + ", " + COLUMN_TAG_ID + ", "
+                            + COLUMN_TEXT + ", " + COLUMN_TIME + ", " + COLUMN_USES + ", " + COLUMN_SCORE
+                            + ") select h." + COLUMN_ID + ", t." + COLUMN_ID + ", h." + COLUMN_TEXT + ", h."
+                            + COLUMN_TIME + ", h." + COLUMN_USES + ", h." + COLUMN_SCORE + " from " + chunk
+                            + " h join " + TAGS_TABLE + " t on t." + COLUMN_NAME + "=h." + COLUMN_TAG + ";");
+                    db.execSQL("delete from " + OLD_HISTORY_TABLE + " where " + COLUMN_ID + " in (select "
+                            + COLUMN_ID + " from " + chunk + ");");
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            db.execSQL("drop table " + OLD_HISTORY_TABLE + ";");
+            return true;
+        }
+
+        /**
+         * Adds the normalized key of the texts, which replaces them as the dedupe key. The keys
+         * are computed in Java, so they are filled in by {@link #finishNormalization}, which also
+         * merges the entries that turn out to share one. The full-text index is dropped since its
+         * triggers match on the old key, and is rebuilt the next time it is used.
+         */
+        private static void upgradeToVersion6(SQLiteDatabase db) {
+            dropFullTextIndex(db);
+            db.execSQL("alter table " + HISTORY_TABLE + " add column " + COLUMN_NORM + " text;");
+        }
+
+        /**
+         * Fills in the missing normalized keys, {@link #REBUILD_CHUNK_SIZE} rows per transaction,
+         * then keeps only the most recent entry of each (tag, key) pair and makes the key unique.
+         * Existing rows keep their accents in the key. Returns whether there was anything to do.
+         */
+        private static boolean finishNormalization(SQLiteDatabase db) {
+            if (DatabaseUtils.longForQuery(db, "select count(*) from sqlite_master where type='index' and name=?",
+                    new String[] { INDEX_TAG_NORM }) != 0) {
+                return false;
+            }
+            String chunkQuery = "select " + COLUMN_ID + ", " + COLUMN_TEXT + " from " + HISTORY_TABLE + " where "
+                    + COLUMN_NORM + " is null and " + COLUMN_ID + ">? order by " + COLUMN_ID + " limit "
+                    + REBUILD_CHUNK_SIZE;
+            SQLiteStatement update = db.compileStatement("update " + HISTORY_TABLE + " set " + COLUMN_NORM
+                    + "=? where " + COLUMN_ID + "=?");
+            try {
+                long lastId = -1;
+                boolean more = true;
+                while (more) {
+                    db.beginTransaction();
+                    Cursor c = db.rawQuery(chunkQuery, new String[] { Long.toString(lastId) });
+                    try {
+                        more = c.getCount() == REBUILD_CHUNK_SIZE;
+                        while (c.moveToNext()) {
+                            lastId = c.getLong(0);
+                            update.bindString(1, HistoryText.normalize(c.getString(1), false));
+                            update.bindLong(2, lastId);
+                            update.execute();
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        c.close();
+                        db.endTransaction();
+                    }
+                }
+            } finally {
+                update.close();
+            }
+            db.beginTransaction();
+            try {
+                // Temporary non-unique index so that the dedupe below is not quadratic
+                db.execSQL("create index " + INDEX_TAG_NORM + " on " + HISTORY_TABLE + "(" + COLUMN_TAG_ID + ", "
+                        + COLUMN_NORM + ");");
+                db.execSQL("delete from " + HISTORY_TABLE + " where exists (select 1 from " + HISTORY_TABLE
+                        + " newer where newer." + COLUMN_TAG_ID + "=" + HISTORY_TABLE + "." + COLUMN_TAG_ID
+                        + " and newer." + COLUMN_NORM + "=" + HISTORY_TABLE + "." + COLUMN_NORM + " and (newer."
+                        + COLUMN_TIME + ">" + HISTORY_TABLE + "." + COLUMN_TIME + " or (newer." + COLUMN_TIME + "="
+                        + HISTORY_TABLE + "." + COLUMN_TIME + " and newer." + COLUMN_ID + ">" + HISTORY_TABLE + "."
+                        + COLUMN_ID + ")));");
+                db.execSQL("drop index " + INDEX_TAG_NORM + ";");
+                db.execSQL("drop index if exists " + INDEX_TAG_TEXT + ";");
+                createNormIndex(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        }
+
+        private static void createNormIndex(SQLiteDatabase db) {
+            db.execSQL("create unique index " + INDEX_TAG_NORM + " on " + HISTORY_TABLE + "(" + COLUMN_TAG_ID + ", "
+                    + COLUMN_NORM + ");");
+        }
+
+        private static void dropFullTextIndex(SQLiteDatabase db) {
+            db.execSQL("drop trigger if exists " + FTS_TABLE + "_before_insert;");
+            db.execSQL("drop trigger if exists " + FTS_TABLE + "_after_insert;");
+            db.execSQL("drop trigger if exists " + FTS_TABLE + "_after_update;");
+            db.execSQL("drop trigger if exists " + FTS_TABLE + "_after_delete;");
+            db.execSQL("drop table if exists " + FTS_TABLE + ";");
+        }
+
+        private static void createQueryIndexes(SQLiteDatabase db, String tagColumn) {
+            db.execSQL("create index " + INDEX_TAG_TIME + " on " + HISTORY_TABLE + "(" + tagColumn + ", "
+                    + COLUMN_TIME + ");");
+            db.execSQL("create index " + INDEX_TAG_TEXT_NOCASE + " on " + HISTORY_TABLE + "(" + tagColumn + ", "
+                    + COLUMN_TEXT + " collate nocase);");
+        }
+
+        private static void createTagTextIndex(SQLiteDatabase db, String tagColumn) {
+            db.execSQL("create unique index " + INDEX_TAG_TEXT + " on " + HISTORY_TABLE + "(" + tagColumn + ", "
+                    + COLUMN_TEXT + ");");
+        }
+
+        /**
+         * Version 1 had no index at all, so duplicated (tag, text) pairs may exist. Only the most
+         * recent row of each pair is kept before the unique index is created.
+         */
+        private static void upgradeToVersion2(SQLiteDatabase db) {
+            // Temporary non-unique index so that the dedupe below is not quadratic
+            db.execSQL("create index " + INDEX_TAG_TEXT + " on " + HISTORY_TABLE + "(" + COLUMN_TAG + ", "
+                    + COLUMN_TEXT + ");");
+            db.execSQL("delete from " + HISTORY_TABLE + " where exists (select 1 from " + HISTORY_TABLE
+                    + " newer where newer." + COLUMN_TAG + "=" + HISTORY_TABLE + "." + COLUMN_TAG + " and newer."
+                    + COLUMN_TEXT + "=" + HISTORY_TABLE + "." + COLUMN_TEXT + " and (newer." + COLUMN_TIME + ">"
+                    + HISTORY_TABLE + "." + COLUMN_TIME + " or (newer." + COLUMN_TIME + "=" + HISTORY_TABLE + "."
+                    + COLUMN_TIME + " and newer." + COLUMN_ID + ">" + HISTORY_TABLE + "." + COLUMN_ID + ")));");
+            db.execSQL("drop index " + INDEX_TAG_TEXT + ";");
+            createTagTextIndex(db, COLUMN_TAG);
+        }
+    }
+
+    /**
+     * A step of {@link HistoryDbSQLiteHelper#MIGRATIONS}.
+     */
+    private abstract static class Migration {
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    static void setMigrationListener(SqliteHistoryStore.MigrationListener listener) {
+        sMigrationListener = listener;
+    }
+
+    /**
+     * Returns a cursor with the columns of the queries above and no rows.
+     */
+    public static Cursor emptyCursor() {
+        return new MatrixCursor(new String[] { COLUMN_TEXT }, 0);
     }
 
     public static String getText(Cursor c) {
@@ -16,14 +16,20 @@
 
 package com.zenlibs.historyedittext;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Rect;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
-import android.widget.ArrayAdapter;
+import android.view.KeyEvent;
+import android.view.View;
+import android.widget.Adapter;
+import android.widget.AdapterView;
 import android.widget.Filter;
 import android.widget.Filter.FilterListener;
 import android.widget.Filterable;
@@ -32,13 +38,56 @@ import com.commonsware.cwac.merge.MergeAdapter;
 
 public class HistoryEditText extends AbsHistoryEditText {
 
+    /**
+     * History values are suggested when they start with the typed text.
+     */
+    public static final int MATCH_MODE_PREFIX = 0;
+
+    /**
+     * History values are suggested when every typed word starts one of their words, wherever it
+     * is. Backed by a full-text index, which is built the first time it is used.
+     */
+    public static final int MATCH_MODE_TOKENS = 1;
+
+    /**
+     * Interface definition for a callback to be invoked when a history value of the dropdown is
+     * long pressed, for example to offer deleting it with {@link #deleteHistoryEntry(String)}.
+     */
+    public interface OnHistoryItemLongClickListener {
+        /**
+         * Returns whether the long press was consumed.
+         */
+        boolean onHistoryItemLongClick(HistoryEditText view, String text);
+    }
+
+    // Above this many values, the SQLite history is read from a cursor as it is displayed
+    private static final int LAZY_HISTORY_THRESHOLD = 100;
+
     private boolean mFirstFiltering = true;
     private ListAdapter mHistoryAdapter;
     private Filter mHistoryFilter;
     private int mMaxHistoryValues;
+    private List<String> mHistoryItems = new ArrayList<String>();
+    private HistoryWriteQueue mWriteQueue;
+    private final HistoryLoader mLoader = new HistoryLoader();
+    // Store that was retained when the view was attached, if it needs it
+    private SqliteHistoryStore mRetainedStore;
+    private final HistoryAdapter.Source mHistorySource = new HistorySource();
+    private final CursorHistoryAdapter.Source mCursorHistorySource = new CursorHistorySource();
+    // Incremented whenever a pending load becomes stale, so that its result is dropped
+    private int mHistoryGeneration;
+    private boolean mFlushHistoryOnDetach = true;
+    private volatile int mHistoryMatchMode = MATCH_MODE_PREFIX;
+    private OnHistoryItemLongClickListener mOnHistoryItemLongClickListener;
+    // Row of the history value last long pressed, so that deleting it needs no lookup
+    private int mLongPressedPosition = -1;
+    private String mLongPressedText;
+    // Incremented by each filtering, so that the results of the previous ones are told apart
+    private int mFilteringId;
 
     public HistoryEditText(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        mWriteQueue = new HistoryWriteQueue(SqliteHistoryStore.getDefault(context));
         parseAttrs(context, attrs, defStyle);
     }
 
@@ -49,33 +98,211 @@ public class HistoryEditText extends AbsHistoryEditText {
                 R.style.Widget_HistoryEditText);
 
         mMaxHistoryValues = a.getInt(R.styleable.HistoryEditText_maxHistoryValues, 5);
+        mWriteQueue.setFlushCount(a.getInt(R.styleable.HistoryEditText_historyFlushCount, 5));
+        mWriteQueue.setFlushDelay(a.getInt(R.styleable.HistoryEditText_historyFlushDelay, 2000));
+        mFlushHistoryOnDetach = a.getBoolean(R.styleable.HistoryEditText_historyFlushOnDetach, true);
+        mHistoryMatchMode = a.getInt(R.styleable.HistoryEditText_historyMatchMode, MATCH_MODE_PREFIX);
+        mWriteQueue.setRetention(a.getInt(R.styleable.HistoryEditText_historyMaxEntries, 0),
+                a.getInt(R.styleable.HistoryEditText_historyMaxAgeDays, 0) * DateUtils.DAY_IN_MILLIS);
 
         a.recycle();
     }
 
     public HistoryEditText(Context context, AttributeSet attrs) {
         super(context, attrs);
+        mWriteQueue = new HistoryWriteQueue(SqliteHistoryStore.getDefault(context));
         parseAttrs(context, attrs, android.R.attr.autoCompleteTextViewStyle);
     }
 
     public HistoryEditText(Context context) {
         super(context);
+        mWriteQueue = new HistoryWriteQueue(SqliteHistoryStore.getDefault(context));
+    }
+
+    /**
+     * Sets the backend the history is read from and written to. Defaults to the shared
+     * {@link SqliteHistoryStore}. Values submitted but not written yet go to the previous store.
+     */
+    public void setHistoryStore(HistoryStore store) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null");
+        }
+        mWriteQueue.setStore(store);
+        if (mRetainedStore != null) {
+            mRetainedStore.release();
+            mRetainedStore = null;
+            retainStore();
+        }
+        mHistoryGeneration++;
+        mHistoryItems.clear();
+        updateHistoryAdapter();
+        if (!mFirstFiltering) {
+            rebuildHistoryAdapter();
+        }
+    }
+
+    public HistoryStore getHistoryStore() {
+        return mWriteQueue.getStore();
+    }
+
+    /**
+     * Sets how many submitted values are buffered before they are written to the history store.
+     */
+    public void setHistoryFlushCount(int flushCount) {
+        mWriteQueue.setFlushCount(flushCount);
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, that a submitted value is buffered before it is
+     * written to the history store. Zero disables the timed flush.
+     */
+    public void setHistoryFlushDelay(long flushDelay) {
+        mWriteQueue.setFlushDelay(flushDelay);
+    }
+
+    /**
+     * Sets whether the buffered values are written to the history store when the view is detached from
+     * its window.
+     */
+    public void setHistoryFlushOnDetach(boolean flushOnDetach) {
+        mFlushHistoryOnDetach = flushOnDetach;
+    }
+
+    /**
+     * Limits how much history is kept for the tag of this view: at most <code>maxEntries</code>
+     * values, none entered more than <code>maxAge</code> milliseconds ago. Older values are removed
+     * whenever new ones are written. Zero disables the corresponding limit, which is the default.
+     */
+    public void setHistoryRetention(int maxEntries, long maxAge) {
+        mWriteQueue.setRetention(maxEntries, maxAge);
+    }
+
+    /**
+     * Sets the maximum amount of memory, in bytes, used by the history cache shared by all the
+     * instances. The cache is emptied.
+     */
+    public static void setHistoryCacheSize(int maxSize) {
+        HistoryCache.setMaxSize(maxSize);
+    }
+
+    /**
+     * Sets how the typed text is matched against the history values, either
+     * {@link #MATCH_MODE_PREFIX} or {@link #MATCH_MODE_TOKENS}.
+     */
+    public void setHistoryMatchMode(int matchMode) {
+        if (mHistoryMatchMode != matchMode) {
+            mHistoryMatchMode = matchMode;
+            if (mHistoryAdapter instanceof HistoryAdapter) {
+                // Its filter narrows down results obtained with the previous mode
+                updateHistoryAdapter();
+            }
+        }
+    }
+
+    public int getHistoryMatchMode() {
+        return mHistoryMatchMode;
+    }
+
+    public void setOnHistoryItemLongClickListener(OnHistoryItemLongClickListener listener) {
+        mOnHistoryItemLongClickListener = listener;
+    }
+
+    /**
+     * Deletes the value of the current tag, and the ones the store keeps as the same (see
+     * {@link HistoryStore#getKey(String)}), from the history. It is removed from the dropdown right
+     * away, without querying the store again, unless many values are shown and it is not the
+     * value last long pressed.
+     */
+    public void deleteHistoryEntry(String text) {
+        mWriteQueue.delete((String) getTag(), text);
+        removeFromVisibleHistory(text);
+    }
+
+    /**
+     * Deletes the entry with the given id, as found in a {@link HistoryPage}, from the history. It
+     * is removed from the dropdown once deleted, without querying the store again. Only the
+     * {@link SqliteHistoryStore} supports it.
+     */
+    public void deleteHistoryEntry(long id) {
+        mWriteQueue.deleteById(id, new HistoryWriteQueue.DeleteCallback() {
+            @Override
+            public void onDeleted(HistoryEntry entry) {
+                String tag = (String) getTag();
+                if (entry != null && (tag == null ? entry.getTag() == null : tag.equals(entry.getTag()))) {
+                    removeFromVisibleHistory(entry.getText());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the buffered values to the history store.
+     */
+    public void flushHistory() {
+        mWriteQueue.flush();
     }
 
     public void clearHistory() {
         boolean wasShowing = isPopupShowing();
-        SQLiteDatabase db = HistoryDb.getWritable(getContext());
-        HistoryDb.clear(db);
-        db.close();
-        rebuildHistoryAdapter();
+        mWriteQueue.clear();
+        mHistoryGeneration++;
+        mHistoryItems.clear();
+        updateHistoryAdapter();
         if (wasShowing) {
             showDropDown();
         }
     }
 
+    @Override
+    public void setTag(Object tag) {
+        super.setTag(tag);
+        // The history shown so far belongs to the previous tag
+        mHistoryGeneration++;
+        mHistoryItems.clear();
+        updateHistoryAdapter();
+        if (!mFirstFiltering) {
+            rebuildHistoryAdapter();
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        retainStore();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mFlushHistoryOnDetach) {
+            mWriteQueue.flush();
+        }
+        if (mHistoryAdapter instanceof CursorHistoryAdapter) {
+            // Its cursor holds the connection open, it is queried again on the next filtering
+            CursorHistoryAdapter adapter = null;
+            setHistoryAdapter(adapter);
+            mFirstFiltering = true;
+        }
+        if (mRetainedStore != null) {
+            mRetainedStore.release();
+            mRetainedStore = null;
+        }
+        FilterExecutor.setFocused(this, false);
+        super.onDetachedFromWindow();
+    }
+
+    private void retainStore() {
+        HistoryStore store = mWriteQueue.getStore();
+        if (store instanceof SqliteHistoryStore) {
+            // Keeps the shared connection open while the view is on screen
+            mRetainedStore = (SqliteHistoryStore) store;
+            mRetainedStore.retain();
+        }
+    }
+
     @Override
     protected void onFocusChanged(boolean focused, int direction, Rect previouslyFocusedRect) {
         super.onFocusChanged(focused, direction, previouslyFocusedRect);
+        FilterExecutor.setFocused(this, focused);
         if (focused) {
             performFiltering(null, -1);
         }
@@ -86,33 +313,44 @@ public class HistoryEditText extends AbsHistoryEditText {
         super.onEditorAction(actionCode);
         if (actionCode == getImeOptions()) {
             addCurrentTextToHistory();
-            rebuildHistoryAdapter();
         }
     }
 
     private <T extends ListAdapter & Filterable> void setHistoryAdapter(T adapter) {
-        mHistoryAdapter = adapter;
-        if (adapter != null) {
-            mHistoryFilter = adapter.getFilter();
+        if (mHistoryAdapter instanceof CursorHistoryAdapter && mHistoryAdapter != adapter) {
+            ((CursorHistoryAdapter) mHistoryAdapter).close();
         }
+        mHistoryAdapter = adapter;
+        mHistoryFilter = adapter != null ? adapter.getFilter() : null;
+        mLongPressedPosition = -1;
+        setFilterOwner(mHistoryFilter);
         rebuildCombinedAdapter();
     }
 
     @Override
     protected void performFiltering(final CharSequence text, final int keyCode) {
+        setFilterOwner(getFilter());
         if (mFirstFiltering) {
-            rebuildHistoryAdapter();
             mFirstFiltering = false;
+            rebuildHistoryAdapter();
         }
-        if (text == null) {
+        // The recent values are already in memory, except for the lazy adapter
+        if (mHistoryFilter == null || (text == null && !(mHistoryAdapter instanceof CursorHistoryAdapter))) {
             HistoryEditText.super.performFiltering(text, keyCode);
-        } else if (mHistoryFilter != null) {
-            mHistoryFilter.filter(text, new FilterListener() {
-                @Override
-                public void onFilterComplete(int count) {
-                    HistoryEditText.super.performFiltering(text, keyCode);
-                }
-            });
+            return;
+        }
+        // Both filters run at the same time, and the drop down is updated once they are done
+        final Filter userFilter = text != null ? getFilter() : null;
+        final FilteringJoin join = new FilteringJoin(++mFilteringId, userFilter != null ? 2 : 1, text == null);
+        PooledFilter.filter(mHistoryFilter, text, join);
+        if (userFilter != null) {
+            PooledFilter.filter(userFilter, text, join);
+        }
+    }
+
+    private void setFilterOwner(Filter filter) {
+        if (filter instanceof PooledFilter) {
+            ((PooledFilter) filter).setOwner(this);
         }
     }
 
@@ -137,26 +375,119 @@ public class HistoryEditText extends AbsHistoryEditText {
     }
 
     private void rebuildHistoryAdapter() {
-        SQLiteDatabase db = HistoryDb.getReadable(getContext());
-        Cursor c = HistoryDb.queryByTag(db, (String) getTag());
-        int count = Math.min(c.getCount(), mMaxHistoryValues);
-        if (count == 0) {
-            ArrayAdapter<String> adapter = null;
+        if (isLazyHistory()) {
+            updateHistoryAdapter();
+            return;
+        }
+        final int generation = ++mHistoryGeneration;
+        final String tag = (String) getTag();
+        HistoryStore store = mWriteQueue.getStore();
+        List<String> cached = HistoryCache.get(store, tag, mMaxHistoryValues);
+        if (cached != null) {
+            setHistoryItems(tag, cached);
+            return;
+        }
+        mLoader.load(store, tag, mMaxHistoryValues, new HistoryLoader.Callback() {
+            @Override
+            public void onHistoryLoaded(List<String> items) {
+                if (generation != mHistoryGeneration) {
+                    return;
+                }
+                setHistoryItems(tag, items);
+                if (hasFocus()) {
+                    performFiltering(getText().length() == 0 ? null : getText(), KeyEvent.KEYCODE_UNKNOWN);
+                }
+            }
+        });
+    }
+
+    private void setHistoryItems(String tag, List<String> items) {
+        mHistoryItems = items;
+        // Values submitted but not written yet are missing from the query
+        mWriteQueue.mergeUncommitted(tag, null, false, mHistoryItems, mMaxHistoryValues);
+        updateHistoryAdapter();
+    }
+
+    /**
+     * Whether the history is shown by a {@link CursorHistoryAdapter}, which only the SQLite store
+     * can back.
+     */
+    private boolean isLazyHistory() {
+        return mMaxHistoryValues > LAZY_HISTORY_THRESHOLD && mWriteQueue.getStore() instanceof SqliteHistoryStore;
+    }
+
+    private void updateHistoryAdapter() {
+        if (isLazyHistory()) {
+            if (mFirstFiltering) {
+                // Nothing is queried until the view is first filtered
+                return;
+            }
+            if (!(mHistoryAdapter instanceof CursorHistoryAdapter)) {
+                setHistoryAdapter(new CursorHistoryAdapter(getContext(), R.layout.het__dropdown_history_item,
+                        mCursorHistorySource));
+            }
+            PooledFilter.filter(mHistoryFilter, getText().length() == 0 ? null : getText(), null);
+        } else if (mHistoryItems.isEmpty()) {
+            HistoryAdapter adapter = null;
             setHistoryAdapter(adapter);
         } else {
-            String[] items = new String[count];
-            int i = 0;
-            while (c.moveToNext() && i < count) {
-                items[i++] = HistoryDb.getText(c);
-            }
-            c.close();
-            db.close();
             int itemLayout = R.layout.het__dropdown_history_item;
-            ArrayAdapter<String> adapter = new ArrayAdapter<String>(getContext(), itemLayout, items);
+            HistoryAdapter adapter = new HistoryAdapter(getContext(), itemLayout, new ArrayList<String>(mHistoryItems),
+                    mHistorySource);
             setHistoryAdapter(adapter);
         }
     }
 
+    private void removeFromVisibleHistory(String text) {
+        HistoryStore store = mWriteQueue.getStore();
+        HistoryText.removeEquivalent(store, mHistoryItems, text);
+        if (mHistoryAdapter instanceof HistoryAdapter) {
+            ((HistoryAdapter) mHistoryAdapter).remove(store, text);
+        } else if (mHistoryAdapter instanceof CursorHistoryAdapter) {
+            CursorHistoryAdapter adapter = (CursorHistoryAdapter) mHistoryAdapter;
+            int position = mLongPressedPosition;
+            if (position >= 0 && position < adapter.getCount() && text.equals(mLongPressedText)
+                    && text.equals(adapter.getItem(position))) {
+                adapter.remove(position);
+            } else {
+                // Looking for the row would read the cursor on the UI thread. The query runs
+                // after the delete, as it waits for the writes.
+                PooledFilter.filter(mHistoryFilter, getText().length() == 0 ? null : getText(), null);
+            }
+        }
+        mLongPressedPosition = -1;
+        mLongPressedText = null;
+    }
+
+    @Override
+    protected boolean onDropDownItemLongClick(AdapterView<?> parent, View v, int position, long id) {
+        if (mOnHistoryItemLongClickListener == null || mHistoryAdapter == null) {
+            return false;
+        }
+        // The history adapter always comes first, so its positions are the ones of the list
+        Adapter adapter = parent.getAdapter();
+        boolean inHistory = adapter == mHistoryAdapter || (adapter instanceof MergeAdapter
+                && ((MergeAdapter) adapter).getAdapter(position) == mHistoryAdapter);
+        if (!inHistory) {
+            return false;
+        }
+        String text = (String) mHistoryAdapter.getItem(position);
+        if (text == null) {
+            return false;
+        }
+        mLongPressedPosition = position;
+        mLongPressedText = text;
+        return mOnHistoryItemLongClickListener.onHistoryItemLongClick(this, text);
+    }
+
+    private void addToHistoryItems(String text) {
+        HistoryText.removeEquivalent(mWriteQueue.getStore(), mHistoryItems, text);
+        mHistoryItems.add(0, text);
+        while (mHistoryItems.size() > mMaxHistoryValues) {
+            mHistoryItems.remove(mHistoryItems.size() - 1);
+        }
+    }
+
     private void addCurrentTextToHistory() {
         String text = getCurrentText();
         if (!TextUtils.isEmpty(text)) {
@@ -165,12 +496,86 @@ public class HistoryEditText extends AbsHistoryEditText {
     }
 
     private void addTextToHistory(String text) {
-        SQLiteDatabase db = HistoryDb.getWritable(getContext());
-        HistoryDb.insertEntry(db, (String) getTag(), text);
-        db.close();
+        mWriteQueue.add((String) getTag(), text, System.currentTimeMillis());
+        // The dropdown shows the new value right away, without waiting for the write
+        addToHistoryItems(text);
+        updateHistoryAdapter();
     }
 
     private String getCurrentText() {
         return getText().toString().trim();
     }
-}
\ No newline at end of file
+
+    /**
+     * Waits for the filters started by one call to {@link HistoryEditText#performFiltering}. The
+     * results of a filtering that was followed by another one are ignored, whichever completes
+     * first.
+     */
+    private class FilteringJoin implements FilterListener {
+        private final int mId;
+        private final boolean mForce;
+        private int mRemaining;
+        private int mCount;
+
+        FilteringJoin(int id, int filters, boolean force) {
+            mId = id;
+            mRemaining = filters;
+            mForce = force;
+        }
+
+        @Override
+        public void onFilterComplete(int count) {
+            if (mId != mFilteringId) {
+                return;
+            }
+            mCount += Math.max(0, count);
+            if (--mRemaining == 0) {
+                updateDropDownForFilter(mCount, mForce);
+            }
+        }
+    }
+
+    private class CursorHistorySource implements CursorHistoryAdapter.Source {
+        @Override
+        public Cursor query(String constraint) {
+            HistoryStore store = mWriteQueue.getStore();
+            if (!(store instanceof SqliteHistoryStore)) {
+                return HistoryDb.emptyCursor();
+            }
+            // There is no list to merge the uncommitted values into, so they are written first
+            mWriteQueue.awaitWrites();
+            boolean tokens = mHistoryMatchMode == MATCH_MODE_TOKENS;
+            return ((SqliteHistoryStore) store).openCursor((String) getTag(), constraint, tokens, mMaxHistoryValues);
+        }
+    }
+
+    private class HistorySource implements HistoryAdapter.Source {
+        @Override
+        public List<String> query(String constraint) {
+            String tag = (String) getTag();
+            boolean tokens = mHistoryMatchMode == MATCH_MODE_TOKENS;
+            HistoryStore store = mWriteQueue.getStore();
+            List<String> items;
+            if (tokens) {
+                items = store.queryTokens(tag, constraint, mMaxHistoryValues);
+            } else {
+                items = store.queryPrefix(tag, constraint, mMaxHistoryValues);
+            }
+            mWriteQueue.mergeUncommitted(tag, constraint, tokens, items, mMaxHistoryValues);
+            return items;
+        }
+
+        @Override
+        public boolean matches(String text, String constraint) {
+            if (mHistoryMatchMode == MATCH_MODE_TOKENS) {
+                return HistoryText.matchesTokens(text, constraint);
+            }
+            return HistoryText.matchesPrefix(text, constraint);
+        }
+
+        @Override
+        public int getLimit() {
+            return mMaxHistoryValues;
+        }
+    }
+}
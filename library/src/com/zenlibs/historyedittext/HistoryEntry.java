@@ -0,0 +1,45 @@
+package com.zenlibs.historyedittext;
+
+/**
+ * A value entered in a {@link HistoryEditText}, as handed to a {@link HistoryStore}.
+ */
+public class HistoryEntry {
+    private final long mId;
+    private final String mTag;
+    private final String mText;
+    private final long mTime;
+
+    public HistoryEntry(String tag, String text, long time) {
+        this(-1, tag, text, time);
+    }
+
+    public HistoryEntry(long id, String tag, String text, long time) {
+        mId = id;
+        mTag = tag;
+        mText = text;
+        mTime = time;
+    }
+
+    /**
+     * Returns the id of the entry in the store it was read from, or -1 if it was not read from
+     * a store that has ids.
+     */
+    public long getId() {
+        return mId;
+    }
+
+    public String getTag() {
+        return mTag;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * Returns the time the value was entered, in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return mTime;
+    }
+}
@@ -0,0 +1,52 @@
+package com.zenlibs.historyedittext;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Reads the history of a tag from a {@link HistoryStore} on a background thread and delivers it
+ * on the UI thread.
+ */
+class HistoryLoader {
+    private static final ExecutorService sLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HistoryEditText loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    void load(final HistoryStore store, final String tag, final int limit, final Callback callback) {
+        sLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                int token = HistoryCache.beginLoad();
+                final List<String> items = store.query(tag, limit);
+                HistoryCache.put(store, tag, items, limit, token);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onHistoryLoaded(items);
+                    }
+                });
+            }
+        });
+    }
+
+    interface Callback {
+        /**
+         * Called on the UI thread with the most recent values of the tag, newest first.
+         */
+        void onHistoryLoaded(List<String> items);
+    }
+}
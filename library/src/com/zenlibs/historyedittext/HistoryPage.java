@@ -0,0 +1,36 @@
+package com.zenlibs.historyedittext;
+
+import java.util.List;
+
+/**
+ * A page of the history of a tag, most recent entries first, as returned by
+ * {@link SqliteHistoryStore#queryPage(String, String, HistoryPage, int)}. Passing it back to that
+ * method returns the page that follows it.
+ */
+public class HistoryPage {
+    private final List<HistoryEntry> mEntries;
+    private final boolean mHasMore;
+
+    HistoryPage(List<HistoryEntry> entries, boolean hasMore) {
+        mEntries = entries;
+        mHasMore = hasMore;
+    }
+
+    public List<HistoryEntry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Whether there are entries after this page.
+     */
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    /**
+     * Returns the last entry of the page, where the next one starts, or null if the page is empty.
+     */
+    HistoryEntry getLast() {
+        return mEntries.isEmpty() ? null : mEntries.get(mEntries.size() - 1);
+    }
+}
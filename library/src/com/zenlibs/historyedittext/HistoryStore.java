@@ -0,0 +1,61 @@
+package com.zenlibs.historyedittext;
+
+import java.util.List;
+
+/**
+ * Persistence backend of {@link HistoryEditText}. Values are grouped by tag, which is the tag of
+ * the view they were entered in. Queries return the most recent values first.
+ * <p>
+ * The methods are called on background threads, possibly concurrently, so implementations must
+ * be thread-safe.
+ * </p>
+ */
+public interface HistoryStore {
+
+    /**
+     * Adds the entries, or refreshes their time if the tag already has their text. Implementations
+     * should apply the whole batch at once when they can.
+     */
+    void insert(List<HistoryEntry> entries);
+
+    /**
+     * Returns the <code>limit</code> most recent values of the tag.
+     */
+    List<String> query(String tag, int limit);
+
+    /**
+     * Returns the <code>limit</code> most recent values of the tag that start with
+     * <code>prefix</code>, ignoring case.
+     */
+    List<String> queryPrefix(String tag, String prefix, int limit);
+
+    /**
+     * Returns the <code>limit</code> most recent values of the tag in which every word of
+     * <code>query</code> starts one of their words, ignoring case.
+     */
+    List<String> queryTokens(String tag, String query, int limit);
+
+    /**
+     * Removes the value from the history of the tag.
+     */
+    void delete(String tag, String text);
+
+    /**
+     * Removes the values of the tag entered before <code>minTime</code>, then the oldest ones
+     * beyond the <code>maxEntries</code> most recent. A bound of zero or less is not enforced.
+     *
+     * @return the number of values removed
+     */
+    int trim(String tag, int maxEntries, long minTime);
+
+    /**
+     * Returns the key the store keeps <code>text</code> under: values with the same key are
+     * stored, and deleted, as one.
+     */
+    String getKey(String text);
+
+    /**
+     * Removes the values of every tag.
+     */
+    void clear();
+}
@@ -0,0 +1,149 @@
+package com.zenlibs.historyedittext;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Text matching rules shared by the history stores, so that every backend suggests the same
+ * values as the SQLite one.
+ */
+class HistoryText {
+
+    /**
+     * Whether <code>text</code> starts with <code>prefix</code>, ignoring case.
+     */
+    static boolean matchesPrefix(String text, String prefix) {
+        return text.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    /**
+     * Whether every word of <code>query</code> is the prefix of some word of <code>text</code>.
+     */
+    static boolean matchesTokens(String text, String query) {
+        List<String> textTokens = tokenize(text);
+        for (String queryToken : tokenize(query)) {
+            boolean found = false;
+            for (String textToken : textTokens) {
+                if (textToken.startsWith(queryToken)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits the text into lower case words the way the FTS "simple" tokenizer does: every
+     * character other than an ASCII letter or digit is a separator, except non-ASCII ones.
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        String lower = toNoCase(text);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean tokenChar = i < lower.length() && isTokenChar(lower.charAt(i));
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Returns the key under which the SQLite store dedupes values: lower case, with runs of
+     * whitespace collapsed to a single space and no leading or trailing whitespace. If
+     * <code>stripAccents</code> is set, diacritics are removed too, on API levels where
+     * {@link Normalizer} is available.
+     */
+    static String normalize(String text, boolean stripAccents) {
+        if (stripAccents && NormalizerHolder.AVAILABLE) {
+            text = stripAccents(text);
+        }
+        String lower = text.toLowerCase(Locale.US);
+        StringBuilder key = new StringBuilder(lower.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = key.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    key.append(' ');
+                    pendingSpace = false;
+                }
+                key.append(c);
+            }
+        }
+        return key.toString();
+    }
+
+    private static String stripAccents(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder stripped = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                stripped.append(c);
+            }
+        }
+        return stripped.toString();
+    }
+
+    /**
+     * Tells whether {@link Normalizer}, added in API level 9, is there. It is probed rather than
+     * read from <code>Build</code>, so that the stores that only use java.* classes keep working
+     * on a plain JVM.
+     */
+    private static class NormalizerHolder {
+        static final boolean AVAILABLE = isAvailable();
+
+        private static boolean isAvailable() {
+            try {
+                Class.forName("java.text.Normalizer");
+                return true;
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes from <code>items</code> the values that have the same key in <code>store</code> as
+     * <code>text</code>, so that the in-memory lists collapse the same values as the store.
+     */
+    static void removeEquivalent(HistoryStore store, List<String> items, String text) {
+        String key = store.getKey(text);
+        for (Iterator<String> it = items.iterator(); it.hasNext();) {
+            if (store.getKey(it.next()).equals(key)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * SQLite's NOCASE collation only folds ASCII letters, so this does the same.
+     */
+    static String toNoCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,317 @@
+package com.zenlibs.historyedittext;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Buffers history entries submitted by a {@link HistoryEditText} and hands them in batches to its
+ * {@link HistoryStore} on a background thread. Entries are added from the UI thread, but the
+ * uncommitted ones can be read from any thread.
+ */
+class HistoryWriteQueue {
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HistoryEditText writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private HistoryStore mStore;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private List<HistoryEntry> mPending = new ArrayList<HistoryEntry>();
+    // Cache token of the first of the pending entries
+    private int mPendingToken;
+    // Copies of the batches handed to the writer whose transaction has not been committed yet,
+    // without the entries deleted since
+    private final List<List<HistoryEntry>> mInFlight = new ArrayList<List<HistoryEntry>>();
+    private int mFlushCount = 5;
+    private long mFlushDelay = 2000;
+    private volatile int mMaxEntries;
+    private volatile long mMaxAge;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    HistoryWriteQueue(HistoryStore store) {
+        mStore = store;
+    }
+
+    synchronized HistoryStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Flushes the pending entries to the current store and sends the next ones to the given one.
+     */
+    synchronized void setStore(HistoryStore store) {
+        flush();
+        mStore = store;
+    }
+
+    /**
+     * Sets the number of pending entries that triggers a flush.
+     */
+    void setFlushCount(int flushCount) {
+        mFlushCount = Math.max(1, flushCount);
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, that an entry can stay pending before being flushed.
+     * A value of zero or less disables the timed flush.
+     */
+    void setFlushDelay(long flushDelay) {
+        mFlushDelay = flushDelay;
+    }
+
+    /**
+     * Sets the retention applied to the tags of each batch once it is written: at most
+     * <code>maxEntries</code> values per tag, none older than <code>maxAge</code> milliseconds.
+     * Zero or less leaves the bound unenforced.
+     */
+    void setRetention(int maxEntries, long maxAge) {
+        mMaxEntries = maxEntries;
+        mMaxAge = maxAge;
+    }
+
+    synchronized void add(String tag, String text, long time) {
+        int token = HistoryCache.onInserted(mStore, tag, text);
+        if (mPending.isEmpty()) {
+            mPendingToken = token;
+        }
+        mPending.add(new HistoryEntry(tag, text, time));
+        if (mPending.size() >= mFlushCount) {
+            flush();
+        } else if (mFlushDelay > 0 && mPending.size() == 1) {
+            mHandler.postDelayed(mFlushRunnable, mFlushDelay);
+        }
+    }
+
+    synchronized void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mPending.isEmpty()) {
+            return;
+        }
+        final List<HistoryEntry> batch = mPending;
+        final int token = mPendingToken;
+        final HistoryStore store = mStore;
+        mPending = new ArrayList<HistoryEntry>();
+        // The writer reads the batch, so deletions apply to a copy
+        final List<HistoryEntry> uncommitted = new ArrayList<HistoryEntry>(batch);
+        mInFlight.add(uncommitted);
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    store.insert(batch);
+                    // Loads that ran while the batch was queued did not see it
+                    Set<String> tags = new HashSet<String>();
+                    for (HistoryEntry entry : batch) {
+                        tags.add(entry.getTag());
+                    }
+                    HistoryCache.onCommitted(store, tags, token);
+                    trim(store, batch);
+                } finally {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (HistoryWriteQueue.this) {
+                                for (Iterator<List<HistoryEntry>> it = mInFlight.iterator(); it.hasNext();) {
+                                    if (it.next() == uncommitted) {
+                                        it.remove();
+                                        break;
+                                    }
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void trim(HistoryStore store, List<HistoryEntry> batch) {
+        int maxEntries = mMaxEntries;
+        long maxAge = mMaxAge;
+        if (maxEntries <= 0 && maxAge <= 0) {
+            return;
+        }
+        long minTime = maxAge > 0 ? System.currentTimeMillis() - maxAge : 0;
+        Set<String> tags = new HashSet<String>();
+        for (HistoryEntry entry : batch) {
+            if (tags.add(entry.getTag()) && store.trim(entry.getTag(), maxEntries, minTime) > 0) {
+                HistoryCache.invalidate(store, entry.getTag());
+            }
+        }
+    }
+
+    /**
+     * Drops the uncommitted entries of the tag equivalent to <code>text</code> and deletes it from
+     * the store once the batches already handed to the writer have been committed.
+     */
+    synchronized void delete(final String tag, final String text) {
+        String key = mStore.getKey(text);
+        removeEquivalent(mPending, tag, key);
+        for (List<HistoryEntry> batch : mInFlight) {
+            removeEquivalent(batch, tag, key);
+        }
+        HistoryCache.invalidate(mStore, tag);
+        final HistoryStore store = mStore;
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                store.delete(tag, text);
+                // A load that ran before the delete may have cached the value again
+                HistoryCache.invalidate(store, tag);
+            }
+        });
+    }
+
+    private void removeEquivalent(List<HistoryEntry> entries, String tag, String key) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            HistoryEntry entry = entries.get(i);
+            if ((entry.getTag() == null ? tag == null : entry.getTag().equals(tag))
+                    && key.equals(mStore.getKey(entry.getText()))) {
+                entries.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Deletes the entry with the given id from the store, once the batches already handed to the
+     * writer have been committed, then passes it to <code>callback</code> on the UI thread, or
+     * null if there was none. Only the SQLite store has ids.
+     */
+    synchronized void deleteById(final long id, final DeleteCallback callback) {
+        final HistoryStore store = mStore;
+        if (!(store instanceof SqliteHistoryStore)) {
+            throw new IllegalStateException("Only a SqliteHistoryStore deletes by id");
+        }
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final HistoryEntry entry = ((SqliteHistoryStore) store).deleteById(id);
+                if (entry != null) {
+                    HistoryCache.invalidate(store, entry.getTag());
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDeleted(entry);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Hands the pending entries to the writer and waits until everything handed to it so far is
+     * in the store. Must not be called from the UI thread.
+     */
+    void awaitWrites() {
+        flush();
+        // The writer runs tasks in order, so this one completes after the pending batches and
+        // any clear
+        Future<?> barrier = sWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        try {
+            barrier.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Nothing to report, the task is empty
+        }
+    }
+
+    /**
+     * Drops the pending entries and clears the store once the batches already handed to the
+     * writer have been committed.
+     */
+    synchronized void clear() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mPending.clear();
+        mInFlight.clear();
+        HistoryCache.clear(mStore);
+        final HistoryStore store = mStore;
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                store.clear();
+            }
+        });
+    }
+
+    /**
+     * Returns the entries for the given tag that are not in the store yet, oldest first.
+     */
+    synchronized List<HistoryEntry> getUncommitted(String tag) {
+        List<HistoryEntry> result = new ArrayList<HistoryEntry>();
+        for (List<HistoryEntry> batch : mInFlight) {
+            collect(batch, tag, result);
+        }
+        collect(mPending, tag, result);
+        return result;
+    }
+
+    /**
+     * Puts the uncommitted entries for the tag that match <code>query</code> (null matches
+     * everything) in front of <code>items</code>, which is then trimmed to <code>limit</code>
+     * values. The query is a case-insensitive prefix of the whole text or, if <code>tokens</code>
+     * is set, of its words.
+     */
+    void mergeUncommitted(String tag, String query, boolean tokens, List<String> items, int limit) {
+        for (HistoryEntry entry : getUncommitted(tag)) {
+            boolean matches;
+            if (query == null) {
+                matches = true;
+            } else if (tokens) {
+                matches = HistoryText.matchesTokens(entry.getText(), query);
+            } else {
+                matches = HistoryText.matchesPrefix(entry.getText(), query);
+            }
+            if (matches) {
+                HistoryText.removeEquivalent(mStore, items, entry.getText());
+                items.add(0, entry.getText());
+            }
+        }
+        while (items.size() > limit) {
+            items.remove(items.size() - 1);
+        }
+    }
+
+    interface DeleteCallback {
+        /**
+         * Called on the UI thread with the deleted entry, or null if there was none.
+         */
+        void onDeleted(HistoryEntry entry);
+    }
+
+    private static void collect(List<HistoryEntry> entries, String tag, List<HistoryEntry> result) {
+        for (HistoryEntry entry : entries) {
+            if (entry.getTag() == null ? tag == null : entry.getTag().equals(tag)) {
+                result.add(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package com.zenlibs.historyedittext;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link HistoryStore} for high write rates. Every change is appended as a binary record to a
+ * journal file, with no index maintenance and no rollback journal, and queries are served from
+ * memory.
+ * <p>
+ * The in-memory index is rebuilt on first use from a single sequential read of the memory-mapped
+ * journal. Records made obsolete by later ones are garbage, and once there is enough of it a
+ * background thread rewrites the journal with only the latest record of each (tag, text) pair.
+ * Records are flushed to the operating system after every batch but not synced to the disk, so
+ * they survive the process but not necessarily a power loss.
+ * </p>
+ * <p>
+ * Records are an <code>int</code> length followed by that many bytes: a type byte and its
+ * payload. Tags are written once, in a tag record that assigns them an id: <code>int</code> id
+ * and UTF-8 name. Insertions hold the tag id, the <code>long</code> time and the UTF-8 text,
+ * deletions the tag id and the text, and clears nothing. A null tag is stored as an empty one.
+ * The file starts with a header; a file without it is renamed with an <code>.unknown</code>
+ * suffix, or left alone and not written if that fails.
+ * </p>
+ */
+public class JournalHistoryStore implements HistoryStore {
+    // String.getBytes(Charset) is API 9, the charset is looked up by name
+    private static final String UTF8 = "UTF-8";
+    private static final int MAGIC = 0x48455431; // "HET1"
+    private static final byte RECORD_TAG = 1;
+    private static final byte RECORD_INSERT = 2;
+    private static final byte RECORD_DELETE = 3;
+    private static final byte RECORD_CLEAR = 4;
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 1024;
+    private static final byte[] RECORD_CLEAR_BYTES = new byte[] { 0, 0, 0, 1, RECORD_CLEAR };
+
+    private static final ExecutorService sCompactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HistoryEditText compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final File mFile;
+    private final MemoryHistoryStore mMemory = new MemoryHistoryStore();
+    private final Map<String, Integer> mTagIds = new HashMap<String, Integer>();
+    private DataOutputStream mOut;
+    // Length of the journal up to its last complete record, while mOut is open
+    private long mLength;
+    // Whether a failed append may have left part of a record after mLength
+    private boolean mTorn;
+    // Whether the file is not a journal and could not be moved aside, so it is never written
+    private boolean mForeign;
+    private boolean mLoaded;
+    private int mCompactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    // Number of insertion and deletion records in the journal, and how many of them are obsolete
+    private int mRecordCount;
+    private int mGarbageCount;
+    private boolean mCompacting;
+
+    public JournalHistoryStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Sets the number of obsolete records above which the journal is compacted, provided they also
+     * outnumber the live ones.
+     */
+    public synchronized void setCompactionThreshold(int threshold) {
+        mCompactionThreshold = threshold;
+    }
+
+    @Override
+    public synchronized void insert(List<HistoryEntry> entries) {
+        load();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        Map<String, Integer> newTagIds = new HashMap<String, Integer>();
+        try {
+            for (HistoryEntry entry : entries) {
+                String tag = nonNull(entry.getTag());
+                String text = entry.getText().trim();
+                int tagId = getTagId(tag, out, newTagIds);
+                if (mMemory.contains(tag, text)) {
+                    mGarbageCount++;
+                }
+                mMemory.insert(new HistoryEntry(tag, text, entry.getTime()));
+                mRecordCount++;
+                writeInsert(out, tagId, text, entry.getTime());
+            }
+        } catch (IOException e) {
+            // Writing to memory does not fail
+        }
+        append(records.toByteArray(), newTagIds);
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized List<String> query(String tag, int limit) {
+        load();
+        return mMemory.query(nonNull(tag), limit);
+    }
+
+    @Override
+    public synchronized List<String> queryPrefix(String tag, String prefix, int limit) {
+        load();
+        return mMemory.queryPrefix(nonNull(tag), prefix, limit);
+    }
+
+    @Override
+    public synchronized List<String> queryTokens(String tag, String query, int limit) {
+        load();
+        return mMemory.queryTokens(nonNull(tag), query, limit);
+    }
+
+    @Override
+    public synchronized void delete(String tag, String text) {
+        load();
+        tag = nonNull(tag);
+        text = text.trim();
+        if (!mMemory.contains(tag, text)) {
+            return;
+        }
+        mMemory.delete(tag, text);
+        // Both the insertion and the deletion are obsolete from now on
+        mRecordCount++;
+        mGarbageCount += 2;
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        Map<String, Integer> newTagIds = new HashMap<String, Integer>();
+        try {
+            writeDelete(out, getTagId(tag, out, newTagIds), text);
+        } catch (IOException e) {
+            // Writing to memory does not fail
+        }
+        append(records.toByteArray(), newTagIds);
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized int trim(String tag, int maxEntries, long minTime) {
+        load();
+        tag = nonNull(tag);
+        List<String> removed = mMemory.trimEntries(tag, maxEntries, minTime);
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        mRecordCount += removed.size();
+        mGarbageCount += 2 * removed.size();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        Map<String, Integer> newTagIds = new HashMap<String, Integer>();
+        try {
+            int tagId = getTagId(tag, out, newTagIds);
+            for (String text : removed) {
+                writeDelete(out, tagId, text);
+            }
+        } catch (IOException e) {
+            // Writing to memory does not fail
+        }
+        append(records.toByteArray(), newTagIds);
+        maybeCompact();
+        return removed.size();
+    }
+
+    @Override
+    public String getKey(String text) {
+        return text.trim();
+    }
+
+    @Override
+    public synchronized void clear() {
+        load();
+        mMemory.clear();
+        mRecordCount = 0;
+        mGarbageCount = 0;
+        mTagIds.clear();
+        closeOutput();
+        if (mForeign) {
+            return;
+        }
+        // An empty journal replays to an empty history, so it can simply start over
+        if (mFile.delete() || !mFile.exists()) {
+            mTorn = false;
+        } else {
+            append(RECORD_CLEAR_BYTES, null);
+        }
+    }
+
+    /**
+     * Closes the journal file. It is reopened if the store is used again.
+     */
+    public synchronized void close() {
+        closeOutput();
+    }
+
+    /**
+     * Returns the id of the tag, writing its tag record to <code>out</code> if it is new. New ids
+     * are put in <code>newTagIds</code>, to be kept once the record is in the journal.
+     */
+    private int getTagId(String tag, DataOutputStream out, Map<String, Integer> newTagIds) throws IOException {
+        Integer id = mTagIds.get(tag);
+        if (id != null) {
+            return id;
+        }
+        id = newTagIds.get(tag);
+        if (id == null) {
+            id = mTagIds.size() + newTagIds.size() + 1;
+            newTagIds.put(tag, id);
+            writeTag(out, id, tag);
+        }
+        return id;
+    }
+
+    private static int getTagId(Map<String, Integer> tagIds, String tag, DataOutputStream out) throws IOException {
+        Integer id = tagIds.get(tag);
+        if (id == null) {
+            id = tagIds.size() + 1;
+            tagIds.put(tag, id);
+            writeTag(out, id, tag);
+        }
+        return id;
+    }
+
+    private static void writeTag(DataOutputStream out, int id, String tag) throws IOException {
+        byte[] tagBytes = encode(tag);
+        out.writeInt(1 + 4 + tagBytes.length);
+        out.writeByte(RECORD_TAG);
+        out.writeInt(id);
+        out.write(tagBytes);
+    }
+
+    private static void writeInsert(DataOutputStream out, int tagId, String text, long time) throws IOException {
+        byte[] textBytes = encode(text);
+        out.writeInt(1 + 4 + 8 + textBytes.length);
+        out.writeByte(RECORD_INSERT);
+        out.writeInt(tagId);
+        out.writeLong(time);
+        out.write(textBytes);
+    }
+
+    private static void writeDelete(DataOutputStream out, int tagId, String text) throws IOException {
+        byte[] textBytes = encode(text);
+        out.writeInt(1 + 4 + textBytes.length);
+        out.writeByte(RECORD_DELETE);
+        out.writeInt(tagId);
+        out.write(textBytes);
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                if (file.length() < 4) {
+                    if (isMagicPrefix(file)) {
+                        // Not even the header made it to the disk
+                        file.setLength(0);
+                        return;
+                    }
+                    validLength = -1;
+                    return;
+                }
+                FileChannel channel = file.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                validLength = replay(buffer);
+                if (validLength >= 0 && validLength < channel.size()) {
+                    // Drops the torn record left by a crash in the middle of an append
+                    channel.truncate(validLength);
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            // Keep what could be read
+        }
+        if (validLength < 0) {
+            moveAside();
+        }
+    }
+
+    private static boolean isMagicPrefix(RandomAccessFile file) throws IOException {
+        int length = (int) file.length();
+        for (int i = 0; i < length; i++) {
+            if (file.read() != ((MAGIC >>> (24 - 8 * i)) & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renames the file, which is not a journal or one of an unknown version, so that a new journal
+     * can be started without losing it. If it cannot be renamed, it is left alone and nothing is
+     * written.
+     */
+    private void moveAside() {
+        for (int i = 0; i < 10; i++) {
+            File aside = new File(mFile.getPath() + (i == 0 ? ".unknown" : ".unknown" + i));
+            if (!aside.exists()) {
+                if (!mFile.renameTo(aside)) {
+                    break;
+                }
+                return;
+            }
+        }
+        mForeign = true;
+    }
+
+    /**
+     * Rebuilds the in-memory index from the journal and returns the length of its valid part, or
+     * -1 if the file does not start with the header of a journal.
+     */
+    private long replay(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC) {
+            return -1;
+        }
+        Map<Integer, String> tags = new HashMap<Integer, String>();
+        int validLength = buffer.position();
+        try {
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length < 1 || length > buffer.remaining()) {
+                    break;
+                }
+                int end = buffer.position() + length;
+                byte type = buffer.get();
+                if (length < getMinimumLength(type)) {
+                    break;
+                }
+                if (type == RECORD_TAG) {
+                    int id = buffer.getInt();
+                    String tag = readString(buffer, end);
+                    tags.put(id, tag);
+                    mTagIds.put(tag, id);
+                } else if (type == RECORD_INSERT) {
+                    String tag = tags.get(buffer.getInt());
+                    long time = buffer.getLong();
+                    String text = readString(buffer, end);
+                    if (tag != null) {
+                        if (mMemory.contains(tag, text)) {
+                            mGarbageCount++;
+                        }
+                        mMemory.insert(new HistoryEntry(tag, text, time));
+                        mRecordCount++;
+                    }
+                } else if (type == RECORD_DELETE) {
+                    String tag = tags.get(buffer.getInt());
+                    String text = readString(buffer, end);
+                    if (tag != null) {
+                        mMemory.delete(tag, text);
+                        mRecordCount++;
+                        mGarbageCount += 2;
+                    }
+                } else if (type == RECORD_CLEAR) {
+                    mMemory.clear();
+                    mGarbageCount = mRecordCount;
+                    // Ids are assigned from 1 again after a clear
+                    tags.clear();
+                    mTagIds.clear();
+                }
+                buffer.position(end);
+                validLength = end;
+            }
+        } catch (BufferUnderflowException e) {
+            // Cannot happen with the length checks above, but a torn record is not worth a crash
+        }
+        return validLength;
+    }
+
+    private static int getMinimumLength(byte type) {
+        switch (type) {
+        case RECORD_TAG:
+        case RECORD_DELETE:
+            return 1 + 4;
+        case RECORD_INSERT:
+            return 1 + 4 + 8;
+        default:
+            return 1;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, int end) {
+        byte[] bytes = new byte[end - buffer.position()];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            // Every platform supports UTF-8
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Appends the records to the journal, then keeps the tag ids they assign, if any. On failure,
+     * the journal is truncated back to its last complete record, as the next records would
+     * otherwise follow a torn one and be lost on replay.
+     */
+    private void append(byte[] records, Map<String, Integer> newTagIds) {
+        if (mForeign) {
+            // The values stay in memory
+            return;
+        }
+        try {
+            if (mTorn) {
+                truncate(mFile, mLength);
+                mTorn = false;
+            }
+            int header = 0;
+            if (mOut == null) {
+                mLength = mFile.length();
+                mOut = openOutput(mFile);
+                if (mLength == 0) {
+                    header = 4;
+                }
+            }
+            mOut.write(records);
+            mOut.flush();
+            mLength += header + records.length;
+            if (newTagIds != null) {
+                mTagIds.putAll(newTagIds);
+            }
+        } catch (IOException e) {
+            // The values stay in memory, they are only lost for the next process
+            closeOutput();
+            try {
+                truncate(mFile, mLength);
+            } catch (IOException e2) {
+                // Tried again before the next append
+                mTorn = true;
+            }
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        if (!file.exists() || file.length() <= length) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        boolean isNew = !file.exists() || file.length() == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (isNew) {
+            out.writeInt(MAGIC);
+        }
+        return out;
+    }
+
+    private void closeOutput() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+            }
+            mOut = null;
+        }
+    }
+
+    private void maybeCompact() {
+        if (mForeign || mCompacting || mGarbageCount < mCompactionThreshold
+                || mGarbageCount <= mRecordCount - mGarbageCount) {
+            return;
+        }
+        mCompacting = true;
+        final List<HistoryEntry> entries = mMemory.getEntries();
+        sCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(entries);
+            }
+        });
+    }
+
+    /**
+     * Writes the entries to a new journal without holding the lock, then swaps the files and
+     * appends whatever changed in the meantime.
+     */
+    private void compact(List<HistoryEntry> entries) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        Map<String, Integer> tagIds = new HashMap<String, Integer>();
+        try {
+            DataOutputStream out = openOutput(tmp);
+            try {
+                for (HistoryEntry entry : entries) {
+                    writeInsert(out, getTagId(tagIds, entry.getTag(), out), entry.getText(), entry.getTime());
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            synchronized (this) {
+                mCompacting = false;
+            }
+            return;
+        }
+        synchronized (this) {
+            try {
+                closeOutput();
+                if (!tmp.renameTo(mFile)) {
+                    throw new IOException("Cannot replace " + mFile);
+                }
+                mTorn = false;
+                mTagIds.clear();
+                mTagIds.putAll(tagIds);
+                mRecordCount = entries.size();
+                mGarbageCount = 0;
+                appendChanges(entries, mMemory.getEntries());
+            } catch (IOException e) {
+                tmp.delete();
+            } finally {
+                mCompacting = false;
+            }
+        }
+    }
+
+    /**
+     * Brings the compacted journal, which holds <code>compacted</code>, up to date with the
+     * <code>live</code> values, which may have changed while it was being written.
+     */
+    private void appendChanges(List<HistoryEntry> compacted, List<HistoryEntry> live) throws IOException {
+        Map<String, HistoryEntry> removed = new HashMap<String, HistoryEntry>();
+        for (HistoryEntry entry : compacted) {
+            removed.put(key(entry), entry);
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        Map<String, Integer> newTagIds = new HashMap<String, Integer>();
+        // Live entries are oldest first, so appending the changed ones keeps the order
+        for (HistoryEntry entry : live) {
+            HistoryEntry old = removed.remove(key(entry));
+            if (old == null || old.getTime() != entry.getTime()) {
+                writeInsert(out, getTagId(entry.getTag(), out, newTagIds), entry.getText(), entry.getTime());
+                mRecordCount++;
+                if (old != null) {
+                    mGarbageCount++;
+                }
+            }
+        }
+        // Values deleted or cleared while compacting
+        for (HistoryEntry entry : removed.values()) {
+            writeDelete(out, getTagId(entry.getTag(), out, newTagIds), entry.getText());
+            mRecordCount++;
+            mGarbageCount += 2;
+        }
+        append(records.toByteArray(), newTagIds);
+    }
+
+    private static String key(HistoryEntry entry) {
+        return entry.getTag() + '\u0000' + entry.getText();
+    }
+
+    private static String nonNull(String tag) {
+        return tag != null ? tag : "";
+    }
+}
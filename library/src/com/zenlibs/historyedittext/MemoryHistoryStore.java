@@ -0,0 +1,134 @@
+package com.zenlibs.historyedittext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link HistoryStore} that keeps the values in memory only, for fields whose history does not
+ * need to survive the process. Lookups are linear in the number of values of the tag.
+ */
+public class MemoryHistoryStore implements HistoryStore {
+    private static final int MATCH_ALL = 0;
+    private static final int MATCH_PREFIX = 1;
+    private static final int MATCH_TOKENS = 2;
+
+    // Values of each tag by text, oldest first
+    private final Map<String, LinkedHashMap<String, HistoryEntry>> mTags =
+            new HashMap<String, LinkedHashMap<String, HistoryEntry>>();
+
+    @Override
+    public synchronized void insert(List<HistoryEntry> entries) {
+        for (HistoryEntry entry : entries) {
+            insert(entry);
+        }
+    }
+
+    synchronized void insert(HistoryEntry entry) {
+        String text = entry.getText().trim();
+        LinkedHashMap<String, HistoryEntry> values = mTags.get(entry.getTag());
+        if (values == null) {
+            values = new LinkedHashMap<String, HistoryEntry>();
+            mTags.put(entry.getTag(), values);
+        }
+        // Removing it first moves it to the end of the iteration order
+        values.remove(text);
+        values.put(text, new HistoryEntry(entry.getTag(), text, entry.getTime()));
+    }
+
+    @Override
+    public List<String> query(String tag, int limit) {
+        return query(tag, null, MATCH_ALL, limit);
+    }
+
+    @Override
+    public List<String> queryPrefix(String tag, String prefix, int limit) {
+        return query(tag, prefix, MATCH_PREFIX, limit);
+    }
+
+    @Override
+    public List<String> queryTokens(String tag, String query, int limit) {
+        return query(tag, query, MATCH_TOKENS, limit);
+    }
+
+    @Override
+    public synchronized void delete(String tag, String text) {
+        LinkedHashMap<String, HistoryEntry> values = mTags.get(tag);
+        if (values != null) {
+            values.remove(text.trim());
+        }
+    }
+
+    @Override
+    public int trim(String tag, int maxEntries, long minTime) {
+        return trimEntries(tag, maxEntries, minTime).size();
+    }
+
+    /**
+     * Same as {@link #trim(String, int, long)}, but returns the values removed.
+     */
+    synchronized List<String> trimEntries(String tag, int maxEntries, long minTime) {
+        List<String> removed = new ArrayList<String>();
+        LinkedHashMap<String, HistoryEntry> values = mTags.get(tag);
+        if (values == null) {
+            return removed;
+        }
+        int excess = maxEntries > 0 ? values.size() - maxEntries : 0;
+        Iterator<HistoryEntry> it = values.values().iterator();
+        while (it.hasNext()) {
+            HistoryEntry entry = it.next();
+            if (excess > 0 || (minTime > 0 && entry.getTime() < minTime)) {
+                it.remove();
+                removed.add(entry.getText());
+                excess--;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public String getKey(String text) {
+        return text.trim();
+    }
+
+    @Override
+    public synchronized void clear() {
+        mTags.clear();
+    }
+
+    synchronized boolean contains(String tag, String text) {
+        LinkedHashMap<String, HistoryEntry> values = mTags.get(tag);
+        return values != null && values.containsKey(text.trim());
+    }
+
+    /**
+     * Returns every value of every tag, oldest first within each tag.
+     */
+    synchronized List<HistoryEntry> getEntries() {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (LinkedHashMap<String, HistoryEntry> values : mTags.values()) {
+            entries.addAll(values.values());
+        }
+        return entries;
+    }
+
+    private synchronized List<String> query(String tag, String constraint, int match, int limit) {
+        List<String> result = new ArrayList<String>();
+        LinkedHashMap<String, HistoryEntry> values = mTags.get(tag);
+        if (values == null) {
+            return result;
+        }
+        String[] texts = values.keySet().toArray(new String[values.size()]);
+        for (int i = texts.length - 1; i >= 0 && result.size() < limit; i--) {
+            String text = texts[i];
+            if (match == MATCH_ALL || (match == MATCH_PREFIX && HistoryText.matchesPrefix(text, constraint))
+                    || (match == MATCH_TOKENS && HistoryText.matchesTokens(text, constraint))) {
+                result.add(text);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,406 @@
+package com.zenlibs.historyedittext;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * {@link HistoryStore} that splits the history in one table per calendar month (UTC), each value
+ * living in the table of the month it was last entered in. A <code>history</code> view joins them
+ * all. Queries read the newest tables first and stop as soon as they have enough values, and
+ * {@link #expire(long)} drops whole tables instead of deleting their rows one by one, which suits
+ * histories kept for a long time. It uses its own database file, separate from the one of
+ * {@link SqliteHistoryStore}.
+ */
+public class PartitionedHistoryStore implements HistoryStore {
+    private static final String DATABASE_NAME = "historyedittext_partitioned.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String VIEW = "history";
+    private static final String PARTITION_PREFIX = VIEW + "_";
+    private static final String COLUMN_TAG = "tag";
+    private static final String COLUMN_TEXT = "text";
+    private static final String COLUMN_NORM = "norm";
+    private static final String COLUMN_TIME = "time";
+    private static final String QUERY_PARTITIONS = "SELECT name FROM sqlite_master WHERE type='table' AND name"
+            + " GLOB '" + PARTITION_PREFIX + "[0-9]*'";
+    private static final String SELECTION_ENTRY = COLUMN_TAG + "=? AND " + COLUMN_NORM + "=?";
+    private static final String SELECTION_TAG = COLUMN_TAG + "=?";
+    private static final String SELECTION_OLDER = COLUMN_TAG + "=? AND " + COLUMN_TIME + "<?";
+    private static final String SELECTION_CONTAINS = " AND " + COLUMN_NORM + " LIKE ?";
+    private static final String SELECTION_PREFIX = COLUMN_TAG + "=? AND " + COLUMN_TEXT + " COLLATE NOCASE >=? AND "
+            + COLUMN_TEXT + " COLLATE NOCASE <?";
+    private static final String QUERY_CAP_TIME = "SELECT " + COLUMN_TIME + " FROM " + VIEW + " WHERE " + COLUMN_TAG
+            + "=? ORDER BY " + COLUMN_TIME + " DESC LIMIT 1 OFFSET ?";
+    private static final String[] COLUMNS_TEXT = { COLUMN_TEXT };
+    private static final String[] COLUMNS_TIME = { COLUMN_TIME };
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final PartitionedSQLiteHelper mHelper;
+    // Months of the existing partitions, as year * 100 + month
+    private TreeSet<Integer> mPartitions;
+
+    public PartitionedHistoryStore(Context context) {
+        mHelper = new PartitionedSQLiteHelper(context.getApplicationContext());
+    }
+
+    @Override
+    public synchronized void insert(List<HistoryEntry> entries) {
+        SQLiteDatabase db = getDatabase();
+        for (HistoryEntry entry : entries) {
+            createPartition(db, getPartition(entry.getTime()));
+        }
+        db.beginTransaction();
+        try {
+            for (HistoryEntry entry : entries) {
+                String norm = HistoryText.normalize(entry.getText(), false);
+                String[] args = { entry.getTag(), norm };
+                int partition = getPartition(entry.getTime());
+                // A value is only kept in the partition of its last use
+                for (int p : mPartitions) {
+                    if (p != partition) {
+                        db.delete(getTable(p), SELECTION_ENTRY, args);
+                    }
+                }
+                db.execSQL("INSERT OR REPLACE INTO " + getTable(partition) + " (" + COLUMN_TAG + ", " + COLUMN_TEXT
+                        + ", " + COLUMN_NORM + ", " + COLUMN_TIME + ") VALUES (?, ?, ?, ?)", new Object[] {
+                        entry.getTag(), entry.getText(), norm, entry.getTime() });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public List<String> query(String tag, int limit) {
+        return query(tag, SELECTION_TAG, new String[] { tag }, null, limit);
+    }
+
+    @Override
+    public List<String> queryPrefix(String tag, String prefix, int limit) {
+        String lower = HistoryText.toNoCase(prefix);
+        String upper = HistoryDb.nextNoCasePrefix(lower);
+        if (upper == null) {
+            return query(tag, limit);
+        }
+        return query(tag, SELECTION_PREFIX, new String[] { tag, lower, upper }, null, limit);
+    }
+
+    /**
+     * There is no full-text index: SQLite keeps the values of the tag that contain every word of
+     * the query, and those in which the words start one of theirs are read by pages from the
+     * newest, until <code>limit</code> of them match. The scan is done by SQLite, but still costs
+     * about the number of values of the tag in the partitions read.
+     */
+    @Override
+    public List<String> queryTokens(String tag, String query, int limit) {
+        List<String> tokens = HistoryText.tokenize(query);
+        StringBuilder selection = new StringBuilder(SELECTION_TAG);
+        String[] args = new String[tokens.size() + 1];
+        args[0] = tag;
+        for (int i = 0; i < tokens.size(); i++) {
+            // Tokens hold no ASCII punctuation, so there are no wildcards to escape
+            selection.append(SELECTION_CONTAINS);
+            args[i + 1] = "%" + tokens.get(i).toLowerCase(Locale.US) + "%";
+        }
+        return query(tag, selection.toString(), args, query, limit);
+    }
+
+    private synchronized List<String> query(String tag, String selection, String[] args, String tokens, int limit) {
+        SQLiteDatabase db = getDatabase();
+        List<String> result = new ArrayList<String>();
+        // TreeSet.descendingIterator() is API 9
+        List<Integer> newestFirst = new ArrayList<Integer>(mPartitions);
+        Collections.reverse(newestFirst);
+        for (Iterator<Integer> it = newestFirst.iterator(); it.hasNext() && result.size() < limit;) {
+            String table = getTable(it.next());
+            int offset = 0;
+            while (result.size() < limit) {
+                int pageSize = limit - result.size();
+                Cursor c = db.query(table, COLUMNS_TEXT, selection, args, null, null, COLUMN_TIME + " DESC", offset
+                        + "," + pageSize);
+                int rows;
+                try {
+                    rows = c.getCount();
+                    while (c.moveToNext()) {
+                        String text = c.getString(0);
+                        if (tokens == null || HistoryText.matchesTokens(text, tokens)) {
+                            result.add(text);
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                // Without tokens every row matches, so the page was enough
+                if (tokens == null || rows < pageSize) {
+                    break;
+                }
+                offset += rows;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void delete(String tag, String text) {
+        SQLiteDatabase db = getDatabase();
+        String[] args = { tag, HistoryText.normalize(text, false) };
+        db.beginTransaction();
+        try {
+            for (int p : mPartitions) {
+                db.delete(getTable(p), SELECTION_ENTRY, args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Partitions of months that ended before <code>minTime</code> lose all the values of the tag,
+     * without looking at their time, and are dropped once they are empty.
+     */
+    @Override
+    public synchronized int trim(String tag, int maxEntries, long minTime) {
+        SQLiteDatabase db = getDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            if (minTime > 0) {
+                count += deleteOlder(db, tag, minTime);
+            }
+            if (maxEntries > 0 && !mPartitions.isEmpty()) {
+                Cursor c = db.rawQuery(QUERY_CAP_TIME, new String[] { tag, Integer.toString(maxEntries - 1) });
+                try {
+                    if (c.moveToFirst()) {
+                        count += deleteOlder(db, tag, c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            dropEmptyPartitions(db);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetPartitions();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    private int deleteOlder(SQLiteDatabase db, String tag, long time) {
+        int count = 0;
+        for (int p : mPartitions) {
+            if (getStart(p) >= time) {
+                break;
+            }
+            if (getStart(p + 1) <= time) {
+                count += db.delete(getTable(p), SELECTION_TAG, new String[] { tag });
+            } else {
+                count += db.delete(getTable(p), SELECTION_OLDER, new String[] { tag, Long.toString(time) });
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops the partitions of the months that ended before <code>minTime</code>, with the values
+     * of every tag they hold. Only the partition of the month <code>minTime</code> falls in may
+     * keep older values. Returns the number of partitions dropped.
+     */
+    public synchronized int expire(long minTime) {
+        SQLiteDatabase db = getDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (Iterator<Integer> it = mPartitions.iterator(); it.hasNext();) {
+                int p = it.next();
+                if (getStart(p + 1) > minTime) {
+                    break;
+                }
+                db.execSQL("DROP TABLE " + getTable(p));
+                it.remove();
+                count++;
+            }
+            if (count > 0) {
+                createView(db);
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetPartitions();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            // The cached lists of every tag may hold expired values
+            HistoryCache.clear(this);
+        }
+        return count;
+    }
+
+    @Override
+    public String getKey(String text) {
+        return HistoryText.normalize(text, false);
+    }
+
+    @Override
+    public synchronized void clear() {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            for (int p : mPartitions) {
+                db.execSQL("DROP TABLE " + getTable(p));
+            }
+            mPartitions.clear();
+            createView(db);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetPartitions();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Closes the database. It is opened again if the store is used afterwards.
+     */
+    public synchronized void close() {
+        mHelper.close();
+        forgetPartitions();
+    }
+
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (mPartitions == null) {
+            mPartitions = new TreeSet<Integer>();
+            Cursor c = db.rawQuery(QUERY_PARTITIONS, null);
+            try {
+                while (c.moveToNext()) {
+                    mPartitions.add(Integer.valueOf(c.getString(0).substring(PARTITION_PREFIX.length())));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Called when a transaction that changed the partitions fails, so that they are read again
+     * from the schema rather than undoing the change in memory.
+     */
+    private void forgetPartitions() {
+        mPartitions = null;
+    }
+
+    private void createPartition(SQLiteDatabase db, int partition) {
+        if (mPartitions.contains(partition)) {
+            return;
+        }
+        String table = getTable(partition);
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TABLE " + table + " (" + COLUMN_TAG + " TEXT NOT NULL, " + COLUMN_TEXT
+                    + " TEXT NOT NULL, " + COLUMN_NORM + " TEXT NOT NULL, " + COLUMN_TIME + " INTEGER NOT NULL)");
+            db.execSQL("CREATE UNIQUE INDEX " + table + "_tag_norm ON " + table + " (" + COLUMN_TAG + ", "
+                    + COLUMN_NORM + ")");
+            db.execSQL("CREATE INDEX " + table + "_tag_time ON " + table + " (" + COLUMN_TAG + ", " + COLUMN_TIME
+                    + ")");
+            mPartitions.add(partition);
+            createView(db);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            forgetPartitions();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void dropEmptyPartitions(SQLiteDatabase db) {
+        boolean dropped = false;
+        for (Iterator<Integer> it = mPartitions.iterator(); it.hasNext();) {
+            String table = getTable(it.next());
+            Cursor c = db.query(table, COLUMNS_TIME, null, null, null, null, null, "1");
+            try {
+                if (c.getCount() > 0) {
+                    continue;
+                }
+            } finally {
+                c.close();
+            }
+            db.execSQL("DROP TABLE " + table);
+            it.remove();
+            dropped = true;
+        }
+        if (dropped) {
+            createView(db);
+        }
+    }
+
+    private void createView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW);
+        if (mPartitions.isEmpty()) {
+            return;
+        }
+        StringBuilder sql = new StringBuilder("CREATE VIEW " + VIEW + " AS ");
+        for (int p : mPartitions) {
+            if (sql.charAt(sql.length() - 1) != ' ') {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT " + COLUMN_TAG + ", " + COLUMN_TEXT + ", " + COLUMN_NORM + ", " + COLUMN_TIME + " FROM ")
+                    .append(getTable(p));
+        }
+        db.execSQL(sql.toString());
+    }
+
+    private static String getTable(int partition) {
+        return PARTITION_PREFIX + partition;
+    }
+
+    private static int getPartition(long time) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTimeInMillis(time);
+        return calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+    }
+
+    /**
+     * Returns the first instant of the month of the partition. The month after December is
+     * accepted, as partition + 1 is used for the end of a month.
+     */
+    private static long getStart(int partition) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(partition / 100, partition % 100 - 1, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static class PartitionedSQLiteHelper extends SQLiteOpenHelper {
+        PartitionedSQLiteHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            // Partitions are created as the months they hold come up
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.zenlibs.historyedittext;
+
+import android.util.Log;
+import android.widget.Filter;
+
+/**
+ * Filter whose filterings run on the threads of the {@link FilterExecutor}, shared by all the
+ * widgets, rather than on a thread of its own. The widget that shows its results should be set as
+ * its owner, so that its requests follow the focus of that widget. Requests made through
+ * {@link #filter(Filter, CharSequence, FilterListener)} and through the methods of
+ * {@link Filter} must not be mixed, as they would not be run one at a time.
+ */
+abstract class PooledFilter extends Filter {
+    private static final String TAG = "PooledFilter";
+
+    private volatile Object mOwner = this;
+    // Guarded by the lock of FilterExecutor
+    boolean mRunning;
+
+    Object getOwner() {
+        return mOwner;
+    }
+
+    void setOwner(Object owner) {
+        mOwner = owner != null ? owner : this;
+    }
+
+    /**
+     * Same as {@link #filter(CharSequence, FilterListener)}, which cannot be overridden, but on
+     * the shared threads if <code>filter</code> is a pooled one.
+     */
+    static void filter(Filter filter, CharSequence constraint, FilterListener listener) {
+        if (filter instanceof PooledFilter) {
+            // The constraint may be the mutable text of the widget
+            String copy = constraint != null ? constraint.toString() : null;
+            FilterExecutor.submit((PooledFilter) filter, copy, listener);
+        } else {
+            filter.filter(constraint, listener);
+        }
+    }
+
+    /**
+     * Filters on the calling thread, and returns what publishes the results on the UI thread.
+     */
+    Runnable execute(final CharSequence constraint, final FilterListener listener) {
+        FilterResults results;
+        try {
+            results = performFiltering(constraint);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "An exception occured during performFiltering()!", e);
+            results = new FilterResults();
+        }
+        final FilterResults published = results;
+        return new Runnable() {
+            @Override
+            public void run() {
+                publishResults(constraint, published);
+                if (listener != null) {
+                    listener.onFilterComplete(published.count);
+                }
+            }
+        };
+    }
+}
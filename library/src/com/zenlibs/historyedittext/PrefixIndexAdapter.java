@@ -0,0 +1,185 @@
+package com.zenlibs.historyedittext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+/**
+ * Adapter for a fixed list of suggestions, to be given to {@link HistoryEditText#setAdapter}. It
+ * matches the same values as an {@link android.widget.ArrayAdapter} of strings, those whose text
+ * or one of whose words starts with the constraint, ignoring case, and in the same order. But it
+ * looks them up in a sorted index of the words instead of scanning every value, so filtering
+ * costs about the length of the constraint times the log of the number of words, plus the number
+ * of matches. The index is built by the first filtering, on the filter thread.
+ */
+public class PrefixIndexAdapter extends BaseAdapter implements Filterable {
+    private final LayoutInflater mInflater;
+    private final int mResource;
+    private final String[] mValues;
+    private List<String> mItems;
+    private Filter mFilter;
+    // Lower case values and words, sorted, the index of the value each one comes from, and
+    // whether it is the whole value
+    private String[] mKeys;
+    private int[] mKeyValues;
+    private boolean[] mKeyWhole;
+
+    public PrefixIndexAdapter(Context context, int resource, List<String> values) {
+        mInflater = LayoutInflater.from(context);
+        mResource = resource;
+        mValues = values.toArray(new String[values.size()]);
+        mItems = Arrays.asList(mValues);
+    }
+
+    @Override
+    public int getCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mItems.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null ? convertView : mInflater.inflate(mResource, parent, false));
+        view.setText(getItem(position));
+        return view;
+    }
+
+    @Override
+    public Filter getFilter() {
+        if (mFilter == null) {
+            mFilter = new PrefixFilter();
+        }
+        return mFilter;
+    }
+
+    private synchronized void buildIndex() {
+        if (mKeys != null) {
+            return;
+        }
+        List<Key> keys = new ArrayList<Key>(mValues.length);
+        for (int i = 0; i < mValues.length; i++) {
+            String lower = mValues[i].toLowerCase(Locale.getDefault());
+            keys.add(new Key(lower, i, true));
+            // Words are split on spaces, as ArrayAdapter does
+            for (int start = lower.indexOf(' '); start >= 0; start = lower.indexOf(' ', start + 1)) {
+                int end = lower.indexOf(' ', start + 1);
+                if (end < 0) {
+                    end = lower.length();
+                }
+                if (end > start + 1) {
+                    keys.add(new Key(lower.substring(start + 1, end), i, false));
+                }
+            }
+        }
+        Collections.sort(keys);
+        String[] sortedKeys = new String[keys.size()];
+        int[] keyValues = new int[keys.size()];
+        boolean[] keyWhole = new boolean[keys.size()];
+        for (int i = 0; i < sortedKeys.length; i++) {
+            sortedKeys[i] = keys.get(i).text;
+            keyValues[i] = keys.get(i).value;
+            keyWhole[i] = keys.get(i).whole;
+        }
+        mKeyValues = keyValues;
+        mKeyWhole = keyWhole;
+        mKeys = sortedKeys;
+    }
+
+    /**
+     * Returns the values whose text or one of whose words starts with <code>prefix</code>, in
+     * their original order.
+     */
+    private List<String> find(String prefix) {
+        buildIndex();
+        String lower = prefix.toLowerCase(Locale.getDefault());
+        int start = Arrays.binarySearch(mKeys, lower);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        // A word has no spaces, so a constraint with one can only start the whole value
+        boolean wholeOnly = lower.indexOf(' ') >= 0;
+        int[] matches = new int[8];
+        int count = 0;
+        for (int i = start; i < mKeys.length && mKeys[i].startsWith(lower); i++) {
+            if (wholeOnly && !mKeyWhole[i]) {
+                continue;
+            }
+            if (count == matches.length) {
+                // Arrays.copyOf() is API 9
+                int[] grown = new int[count * 2];
+                System.arraycopy(matches, 0, grown, 0, count);
+                matches = grown;
+            }
+            matches[count++] = mKeyValues[i];
+        }
+        Arrays.sort(matches, 0, count);
+        List<String> result = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            // A value matched by several of its words is only listed once
+            if (i == 0 || matches[i] != matches[i - 1]) {
+                result.add(mValues[matches[i]]);
+            }
+        }
+        return result;
+    }
+
+    private static class Key implements Comparable<Key> {
+        final String text;
+        final int value;
+        final boolean whole;
+
+        Key(String text, int value, boolean whole) {
+            this.text = text;
+            this.value = value;
+            this.whole = whole;
+        }
+
+        @Override
+        public int compareTo(Key another) {
+            return text.compareTo(another.text);
+        }
+    }
+
+    private class PrefixFilter extends PooledFilter {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            List<String> values = constraint == null || constraint.length() == 0 ? Arrays.asList(mValues)
+                    : find(constraint.toString());
+            FilterResults results = new FilterResults();
+            results.values = values;
+            results.count = values.size();
+            return results;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            mItems = (List<String>) results.values;
+            if (results.count > 0) {
+                notifyDataSetChanged();
+            } else {
+                notifyDataSetInvalidated();
+            }
+        }
+    }
+}
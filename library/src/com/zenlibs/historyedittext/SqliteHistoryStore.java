@@ -0,0 +1,381 @@
+package com.zenlibs.historyedittext;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * {@link HistoryStore} backed by the SQLite database shared by the whole process. This is the
+ * store used by {@link HistoryEditText} unless told otherwise.
+ */
+public class SqliteHistoryStore implements HistoryStore {
+    /**
+     * Most recently entered values first. This is the default.
+     */
+    public static final int ORDER_RECENCY = 0;
+    /**
+     * Values first by how often and how recently they were entered, each use weighing half as much
+     * after every week.
+     */
+    public static final int ORDER_FRECENCY = 1;
+
+    /**
+     * Notified when the database schema has been upgraded.
+     */
+    public interface MigrationListener {
+        /**
+         * Called on the background thread that opened the database, once the upgrade is
+         * complete. The duration covers the whole upgrade, including the rebuild of large tables.
+         */
+        void onMigrated(int oldVersion, int newVersion, long durationMillis);
+    }
+
+    private static SqliteHistoryStore sDefault;
+
+    private final Context mContext;
+    private volatile int mOrder = ORDER_RECENCY;
+    private volatile boolean mStripAccents;
+
+    public static synchronized SqliteHistoryStore getDefault(Context context) {
+        if (sDefault == null) {
+            sDefault = new SqliteHistoryStore(context);
+        }
+        return sDefault;
+    }
+
+    public SqliteHistoryStore(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Sets the listener notified of schema upgrades. It must be set before the database is first
+     * used to hear about the upgrade of the current run.
+     */
+    public static void setMigrationListener(MigrationListener listener) {
+        HistoryDb.setMigrationListener(listener);
+    }
+
+    /**
+     * Sets the order in which the queries return values, {@link #ORDER_RECENCY} or
+     * {@link #ORDER_FRECENCY}.
+     */
+    public void setOrder(int order) {
+        if (order != ORDER_RECENCY && order != ORDER_FRECENCY) {
+            throw new IllegalArgumentException("Unknown order: " + order);
+        }
+        if (mOrder != order) {
+            mOrder = order;
+            HistoryCache.clear(this);
+        }
+    }
+
+    public int getOrder() {
+        return mOrder;
+    }
+
+    /**
+     * Sets whether values that only differ by their accents are stored as one, as they already
+     * are when they only differ by case or whitespace. Entries stored before the change keep the
+     * key they were stored with. Ignored before Gingerbread.
+     */
+    public void setStripAccents(boolean stripAccents) {
+        mStripAccents = stripAccents;
+    }
+
+    @Override
+    public void insert(List<HistoryEntry> entries) {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            // New tags are added before the transaction, as their ids are cached right away
+            Map<String, Long> tagIds = new HashMap<String, Long>();
+            for (HistoryEntry entry : entries) {
+                if (!tagIds.containsKey(entry.getTag())) {
+                    tagIds.put(entry.getTag(), HistoryDb.getTagId(db, entry.getTag()));
+                }
+            }
+            db.beginTransaction();
+            try {
+                for (HistoryEntry entry : entries) {
+                    HistoryDb.insertEntry(db, tagIds.get(entry.getTag()), entry.getText(), entry.getTime(),
+                            mStripAccents);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    @Override
+    public List<String> query(String tag, int limit) {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            long tagId = HistoryDb.findTagId(db, tag);
+            if (tagId < 0) {
+                return new ArrayList<String>();
+            }
+            return readTexts(HistoryDb.queryByTag(db, tagId, limit, isByFrecency()));
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    @Override
+    public List<String> queryPrefix(String tag, String prefix, int limit) {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            long tagId = HistoryDb.findTagId(db, tag);
+            if (tagId < 0) {
+                return new ArrayList<String>();
+            }
+            return readTexts(HistoryDb.queryByTagPrefix(db, tagId, prefix, limit, isByFrecency()));
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    @Override
+    public List<String> queryTokens(String tag, String query, int limit) {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            long tagId = HistoryDb.findTagId(db, tag);
+            if (tagId < 0) {
+                return new ArrayList<String>();
+            }
+            return readTexts(HistoryDb.queryByTagTokens(db, tagId, query, limit, isByFrecency()));
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    @Override
+    public void delete(String tag, String text) {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            long tagId = HistoryDb.findTagId(db, tag);
+            if (tagId >= 0) {
+                HistoryDb.deleteEntry(db, tagId, text, mStripAccents);
+            }
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    /**
+     * Deletes the entry with the given id, as found in a {@link HistoryPage}. Returns the entry,
+     * or null if there was none. Must not be called from the UI thread.
+     */
+    public HistoryEntry deleteById(long id) {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            db.beginTransaction();
+            try {
+                HistoryEntry entry = null;
+                Cursor c = HistoryDb.queryEntry(db, id);
+                try {
+                    if (c.moveToFirst()) {
+                        entry = new HistoryEntry(id, c.getString(0), c.getString(1), c.getLong(2));
+                    }
+                } finally {
+                    c.close();
+                }
+                if (entry != null) {
+                    HistoryDb.deleteEntryById(db, id);
+                }
+                db.setTransactionSuccessful();
+                return entry;
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    @Override
+    public int trim(String tag, int maxEntries, long minTime) {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            long tagId = HistoryDb.findTagId(db, tag);
+            if (tagId < 0) {
+                return 0;
+            }
+            db.beginTransaction();
+            try {
+                int count = HistoryDb.trimTag(db, tagId, maxEntries, minTime);
+                db.setTransactionSuccessful();
+                return count;
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    @Override
+    public String getKey(String text) {
+        return HistoryText.normalize(text, mStripAccents);
+    }
+
+    @Override
+    public void clear() {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            HistoryDb.clear(db);
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    /**
+     * Writes the whole history to <code>out</code> as a JSON array of
+     * <code>{"tag", "text", "time", "uses", "score"}</code> objects. Rows are streamed from the
+     * database, so memory use does not depend on the size of the history. Must not be called
+     * from the UI thread. The writer is not closed.
+     */
+    public void exportJson(Writer out) throws IOException {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            JsonWriter writer = new JsonWriter(out);
+            HistoryDb.exportEntries(db, writer);
+            writer.flush();
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    /**
+     * Adds the entries read from <code>in</code>, in the format written by
+     * {@link #exportJson(Writer)}, replacing the existing ones with the same tag and text. Only
+     * "tag" and "text" are required. Entries are streamed into large transactions, so memory
+     * use does not depend on the size of the input. Must not be called from the UI thread. The
+     * reader is not closed.
+     *
+     * @return the number of entries imported
+     */
+    public int importJson(Reader in) throws IOException {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            return HistoryDb.importEntries(db, new JsonReader(in), mStripAccents);
+        } finally {
+            HistoryCache.clear(this);
+            HistoryDb.release();
+        }
+    }
+
+    /**
+     * Returns the page of the history of the tag that follows <code>previous</code>, or the first
+     * one if it is null, with at most <code>pageSize</code> entries, most recent first. If
+     * <code>prefix</code> is not null, only the values that start with it, ignoring case, are
+     * included; it must be the same for all the pages of a listing. Pages are found by seeking
+     * to the time and id of the last entry of the previous one, so every page costs the same to
+     * read however deep it is. Must not be called from the UI thread.
+     */
+    public HistoryPage queryPage(String tag, String prefix, HistoryPage previous, int pageSize) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        HistoryEntry last = previous != null ? previous.getLast() : null;
+        if (previous != null && (last == null || !previous.hasMore())) {
+            return new HistoryPage(entries, false);
+        }
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        try {
+            long tagId = HistoryDb.findTagId(db, tag);
+            if (tagId < 0) {
+                return new HistoryPage(entries, false);
+            }
+            // One more row than needed tells whether there is a next page
+            Cursor c = HistoryDb.queryPage(db, tagId, prefix, last != null ? last.getTime() : 0,
+                    last != null ? last.getId() : -1, pageSize + 1);
+            try {
+                while (c.moveToNext() && entries.size() < pageSize) {
+                    entries.add(new HistoryEntry(c.getLong(0), tag, c.getString(1), c.getLong(2)));
+                }
+                return new HistoryPage(entries, c.getCount() > pageSize);
+            } finally {
+                c.close();
+            }
+        } finally {
+            HistoryDb.release();
+        }
+    }
+
+    /**
+     * Returns a cursor over the <code>text</code> column of the values of the tag that match
+     * <code>constraint</code> (null matches everything) as a prefix of the text or, if
+     * <code>tokens</code> is set, of its words. The cursor keeps the connection open until it is
+     * closed.
+     */
+    Cursor openCursor(String tag, String constraint, boolean tokens, int limit) {
+        SQLiteDatabase db = HistoryDb.acquire(mContext);
+        Cursor c = null;
+        try {
+            long tagId = HistoryDb.findTagId(db, tag);
+            if (tagId < 0) {
+                c = HistoryDb.emptyCursor();
+            } else if (constraint == null) {
+                c = HistoryDb.queryByTag(db, tagId, limit, isByFrecency());
+            } else if (tokens) {
+                c = HistoryDb.queryByTagTokens(db, tagId, constraint, limit, isByFrecency());
+            } else {
+                c = HistoryDb.queryByTagPrefix(db, tagId, constraint, limit, isByFrecency());
+            }
+        } finally {
+            if (c == null) {
+                HistoryDb.release();
+            }
+        }
+        return new CursorWrapper(c) {
+            private boolean mReleased;
+
+            @Override
+            public void close() {
+                super.close();
+                if (!mReleased) {
+                    mReleased = true;
+                    HistoryDb.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Keeps the connection open until {@link #release()} is called, without opening it.
+     */
+    void retain() {
+        HistoryDb.retain();
+    }
+
+    void release() {
+        HistoryDb.release();
+    }
+
+    private boolean isByFrecency() {
+        return mOrder == ORDER_FRECENCY;
+    }
+
+    private static List<String> readTexts(Cursor c) {
+        List<String> texts = new ArrayList<String>();
+        try {
+            while (c.moveToNext()) {
+                texts.add(HistoryDb.getText(c));
+            }
+        } finally {
+            c.close();
+        }
+        return texts;
+    }
+}
@@ -17,6 +17,7 @@ import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.zenlibs.historyedittext.HistoryEditText;
+import com.zenlibs.historyedittext.PrefixIndexAdapter;
 import com.zenlibs.historyedittext.demo.R;
 
 public class SimpleHistoryActivity extends SherlockActivity {
@@ -44,9 +45,9 @@ public class SimpleHistoryActivity extends SherlockActivity {
         setContentView(R.layout.activity_simple);
 
         mHistoryEditText = (HistoryEditText) findViewById(R.id.historyEditText);
-        mHistoryEditText.setAdapter(createAdapter());
+        mHistoryEditText.setAdapter(createIndexedAdapter());
         mHistoryEditText2 = (HistoryEditText) findViewById(R.id.historyEditText2);
-        mHistoryEditText2.setAdapter(createAdapter());
+        mHistoryEditText2.setAdapter(createIndexedAdapter());
         autoCompleteTextView = (AutoCompleteTextView) findViewById(R.id.autoCompleteTextView);
         autoCompleteTextView.setAdapter(createAdapter());
         autoCompleteTextView.setThreshold(1);
@@ -68,6 +69,10 @@ public class SimpleHistoryActivity extends SherlockActivity {
         return adapter;
     }
 
+    private PrefixIndexAdapter createIndexedAdapter() {
+        return new PrefixIndexAdapter(this, R.layout.het__simple_dropdown_item_1line, mCountries);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         new MenuInflater(this).inflate(R.menu.activity_simple, menu);